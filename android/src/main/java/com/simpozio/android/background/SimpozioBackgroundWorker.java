@@ -3,21 +3,33 @@ package com.simpozio.android.background;
 import android.content.*;
 import android.os.Bundle;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.annotation.SuppressLint;
 
 import com.facebook.react.bridge.*;
+import com.simpozio.android.background.event.BatchingEventEmitter;
+import com.simpozio.android.background.event.DebugLog;
+import com.simpozio.android.background.event.Event;
+import com.simpozio.android.background.event.EventBus;
+import com.simpozio.android.background.event.EventJournal;
+import com.simpozio.android.background.event.EventPublisher;
 import com.simpozio.android.background.event.Events;
+import com.simpozio.android.background.http.HttpClientConfig;
+import com.simpozio.android.background.http.SharedHttpClient;
+import com.simpozio.android.background.ping.ClockSync;
 import com.simpozio.android.background.ping.PingService;
 import com.simpozio.android.background.trace.TraceService;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.simpozio.android.background.heartbeat.HeartbeatService;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import static android.content.Context.POWER_SERVICE;
 import static android.os.PowerManager.PARTIAL_WAKE_LOCK;
 
 import static com.facebook.react.bridge.ReadableType.*;
 import static com.simpozio.android.background.ServiceURL.*;
-import static com.simpozio.android.background.event.Events.EVENT_TYPE;
 
 public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule implements ServiceURL {
 
@@ -31,10 +43,30 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
     public static final String HEADERS_EVENT_BUNDLE = "headers.event.bundle";
 
     public static final String SIMPOZIO_URL_EXTRA = "simpozio.url";
-
-    private DeviceEventManagerModule.RCTDeviceEventEmitter eventEmitter;
+    public static final String SCHEDULE_EXTRA = "schedule";
+    public static final String RETRY_EXTRA = "retry";
+    public static final String DISPATCH_EXTRA = "dispatch";
+    public static final String MAX_IN_FLIGHT_EXTRA = "maxInFlight";
+    public static final String GZIP_EXTRA = "gzip";
+    public static final String TIMESTAMP_HEADER_EXTRA = "timestampHeader";
+
+    private BatchingEventEmitter eventEmitter;
     private PowerManager.WakeLock wakeLock;
 
+    /**
+     * Events journaled before the bus subscription are replayed on request, those of them
+     * which still arrived live are remembered so they are not replayed again.
+     */
+    private final Set<Long> replayDelivered = new HashSet<>();
+    private long replayUpTo = -1;
+
+    private final EventPublisher eventSubscriber = new EventPublisher() {
+        @Override
+        public void fireEvent(Event event) {
+            SimpozioBackgroundWorker.this.fireEvent(event.toWritableMap());
+        }
+    };
+
     public SimpozioBackgroundWorker(ReactApplicationContext context) {
         super(context);
     }
@@ -42,11 +74,22 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
     @Override
     @SuppressLint({"WakelockTimeout", "InvalidWakeLockTag"})
     public void initialize() {
-        this.eventEmitter = getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class);
+        this.eventEmitter = new BatchingEventEmitter(getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class));
         this.wakeLock = ((PowerManager) getReactApplicationContext().getSystemService(POWER_SERVICE)).newWakeLock(PARTIAL_WAKE_LOCK, "wl");
         this.wakeLock.acquire();
-        //
+        // services in this process publish straight to the bus, the broadcast receiver serves a separate process
+        EventBus.get().subscribe(this.eventSubscriber);
         this.getReactApplicationContext().registerReceiver(createReceiver(), getFeedbackIntentFilter());
+        // events journaled from now on are published after the subscription, so they arrive live
+        EventJournal journal = EventJournal.get(getReactApplicationContext().getFilesDir());
+        synchronized (this.replayDelivered) {
+            this.replayUpTo = journal != null ? journal.lastSequence() : -1;
+        }
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        EventBus.get().unsubscribe(this.eventSubscriber);
     }
 
     // React Native API
@@ -57,7 +100,13 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
     }
 
     /**
-     * @param metadata is object {"baseUrl":"string", "headers":{...}, "requestBody":{...} or [...]}
+     * @param metadata is object {"baseUrl":"string", "headers":{...}, "requestBody":{...} or [...], "schedule":"string", "retry":{...},
+     *                 "dispatch":"string", "maxInFlight":"number", "gzip":"boolean", "timestampHeader":"string"},
+     *                 schedule is one of "fixedDelay" (default), "catchUp" or "skip",
+     *                 retry is optional object {"baseDelay":"number", "maxDelay":"number", "failureThreshold":"number", "openDuration":"number"},
+     *                 optional dispatch "async" sends heartbeats without waiting for responses, at most "maxInFlight":"number" at a time,
+     *                 optional gzip compresses request bodies above the configured threshold,
+     *                 optional timestampHeader names the response header with server time used for passive clock sync
      */
 
     @ReactMethod
@@ -66,7 +115,16 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
     }
 
     /**
-     * @param metadata is object {"baseUrl":"string", "delay":"string", "seriesDelay":"string", "count":"string"}
+     * @param metadata is object {"baseUrl":"string", "delay":"string", "seriesDelay":"string", "count":"string", "retry":{...},
+     *                 "adaptive":"boolean", "accuracy":"number", "minSeriesDelay":"number", "maxSeriesDelay":"number", "passive":"boolean",
+     *                 "burst":"boolean", "burstStagger":"number", "rttOnly":"boolean", "debug":"boolean", "debugEvents":"boolean"},
+     *                 adaptive series stop once the offset is known within accuracy and stretch seriesDelay
+     *                 between minSeriesDelay and maxSeriesDelay while the offset is stable,
+     *                 passive skips a series whenever heartbeat responses already give the offset within accuracy,
+     *                 burst sends the probes of a series concurrently, burstStagger millis apart, after one warm-up probe,
+     *                 rttOnly measures round trips with HEAD probes and reads the timestamp only with the last probe,
+     *                 repeating it while its round trip is well above the lowest HEAD round trip,
+     *                 debug lines are kept in memory for dumpDebugLog(), debugEvents also sends each line as an event
      */
 
     @ReactMethod
@@ -117,6 +175,107 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
         this.sendBroadcast(toTraceIntent(metadata));
     }
 
+    /**
+     * @param config is object {"maxIdleConnections":"number", "keepAlive":"number", "connectTimeout":"number",
+     *               "readTimeout":"number", "writeTimeout":"number", "http2":"boolean", "gzipMinBytes":"number",
+     *               "pingInterval":"number"}, all keys are optional, pingInterval keeps HTTP/2 connections warm with PING frames
+     */
+
+    @ReactMethod
+    public void configureHttp(ReadableMap config) {
+        SharedHttpClient.configure(toHttpClientConfig(config));
+    }
+
+    /**
+     * @param config is object {"maxLatency":"number", "maxBatchSize":"number"}, all keys are optional,
+     *               events are delivered in batches at most maxLatency millis late, maxLatency 0 delivers each event on its own
+     */
+
+    @ReactMethod
+    public void configureEvents(ReadableMap config) {
+        if (config.hasKey("maxLatency")) {
+            this.eventEmitter.maxLatencyMillis = config.getInt("maxLatency");
+        }
+        if (config.hasKey("maxBatchSize")) {
+            this.eventEmitter.maxBatchSize = Math.max(1, config.getInt("maxBatchSize"));
+        }
+    }
+
+    /**
+     * @param sequence of the last event handled by JS, the event and every earlier one are not replayed anymore
+     */
+
+    @ReactMethod
+    public void acknowledgeEvents(double sequence) {
+        EventJournal journal = EventJournal.get(getReactApplicationContext().getFilesDir());
+        if (journal != null) {
+            journal.acknowledge((long) sequence);
+        }
+    }
+
+    /**
+     * Emits events JS has not acknowledged from before this module was initialized, e.g. sent while JS was torn down,
+     * as one batch marked {"replayed":true}. JS calls it once its listeners are attached, only the first call replays.
+     */
+
+    @ReactMethod
+    public void replayEvents() {
+        EventJournal journal = EventJournal.get(getReactApplicationContext().getFilesDir());
+        WritableArray events;
+        synchronized (this.replayDelivered) {
+            if (journal == null || this.replayUpTo < 0) {
+                return;
+            }
+            events = journal.unacknowledged(this.replayUpTo, this.replayDelivered);
+            this.replayUpTo = -1;
+            this.replayDelivered.clear();
+        }
+        this.eventEmitter.emitAll(events);
+    }
+
+    /**
+     * Resolves with debug records kept in memory, see {@link DebugLog#dump()}.
+     */
+
+    @ReactMethod
+    public void dumpDebugLog(Promise promise) {
+        promise.resolve(DebugLog.dump());
+    }
+
+    /**
+     * @return predicted server time, millis since epoch, or local time if the clock was not synchronized yet
+     */
+
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public double getServerTime() {
+        ClockSync.Snapshot snapshot = ClockSync.snapshot();
+        if (snapshot == null) {
+            return System.currentTimeMillis();
+        }
+        return Math.floor(snapshot.serverTime(SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * @return object {"offset":"number", "uncertainty":"number", "skewPpm":"number", "age":"number"}
+     * where offset is server time minus local time and uncertainty is extrapolated to now,
+     * or null if the clock was not synchronized yet
+     */
+
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getClockOffset() {
+        ClockSync.Snapshot snapshot = ClockSync.snapshot();
+        if (snapshot == null) {
+            return null;
+        }
+        long elapsed = SystemClock.elapsedRealtime();
+        WritableMap offset = Arguments.createMap();
+        offset.putDouble("offset", Math.round(snapshot.clockOffset(elapsed, System.currentTimeMillis())));
+        offset.putDouble("uncertainty", snapshot.uncertainty(elapsed));
+        offset.putDouble("skewPpm", snapshot.skew * 1e6D);
+        offset.putDouble("age", elapsed - snapshot.elapsed);
+        return offset;
+    }
+
     @ReactMethod
     public void releaseWakeLock() {
         this.wakeLock.release();
@@ -181,7 +340,15 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
     }
 
     private void fireEvent(WritableMap event) {
-        this.eventEmitter.emit(event.getString(EVENT_TYPE), event);
+        if (event.hasKey(EventJournal.SEQUENCE_FIELD)) {
+            long sequence = (long) event.getDouble(EventJournal.SEQUENCE_FIELD);
+            synchronized (this.replayDelivered) {
+                if (sequence <= this.replayUpTo) {
+                    this.replayDelivered.add(sequence);
+                }
+            }
+        }
+        this.eventEmitter.emit(event);
     }
 
     private Intent getHeartbeatServiceIntent() {
@@ -201,6 +368,27 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
         metadataIntent.putExtra(SIMPOZIO_URL_EXTRA, metadata.getString("baseUrl") + path);
         // headers
         acceptHeadersExtra(metadata, metadataIntent);
+        // schedule policy
+        if (metadata.hasKey(SCHEDULE_EXTRA)) {
+            metadataIntent.putExtra(SCHEDULE_EXTRA, metadata.getString(SCHEDULE_EXTRA));
+        }
+        // retry policy
+        acceptRetryExtra(metadata, metadataIntent);
+        // dispatch mode
+        if (metadata.hasKey(DISPATCH_EXTRA)) {
+            metadataIntent.putExtra(DISPATCH_EXTRA, metadata.getString(DISPATCH_EXTRA));
+        }
+        if (metadata.hasKey(MAX_IN_FLIGHT_EXTRA)) {
+            metadataIntent.putExtra(MAX_IN_FLIGHT_EXTRA, metadata.getInt(MAX_IN_FLIGHT_EXTRA));
+        }
+        // request compression
+        if (metadata.hasKey(GZIP_EXTRA)) {
+            metadataIntent.putExtra(GZIP_EXTRA, metadata.getBoolean(GZIP_EXTRA));
+        }
+        // passive clock sync
+        if (metadata.hasKey(TIMESTAMP_HEADER_EXTRA)) {
+            metadataIntent.putExtra(TIMESTAMP_HEADER_EXTRA, metadata.getString(TIMESTAMP_HEADER_EXTRA));
+        }
         // request body
         ReadableType requestBodyType = metadata.getType("requestBody");
         //
@@ -240,13 +428,94 @@ public final class SimpozioBackgroundWorker extends ReactContextBaseJavaModule i
 
     private static Intent acceptPingExtra(ReadableMap metadata, Intent metadataIntent) {
         metadataIntent.putExtra("debug", metadata.getBoolean("debug"));
+        if (metadata.hasKey("debugEvents")) {
+            metadataIntent.putExtra("debugEvents", metadata.getBoolean("debugEvents"));
+        }
         metadataIntent.putExtra("delay", metadata.getInt("delay"));
         metadataIntent.putExtra("baseUrl", metadata.getString("baseUrl"));
         metadataIntent.putExtra("count", metadata.getInt("count"));
         metadataIntent.putExtra("seriesDelay", metadata.getInt("seriesDelay"));
+        acceptRetryExtra(metadata, metadataIntent);
+        // adaptive series
+        if (metadata.hasKey("adaptive")) {
+            metadataIntent.putExtra("adaptive", metadata.getBoolean("adaptive"));
+        }
+        // passive sync from heartbeat responses
+        if (metadata.hasKey("passive")) {
+            metadataIntent.putExtra("passive", metadata.getBoolean("passive"));
+        }
+        // concurrent probes
+        if (metadata.hasKey("burst")) {
+            metadataIntent.putExtra("burst", metadata.getBoolean("burst"));
+        }
+        if (metadata.hasKey("burstStagger")) {
+            metadataIntent.putExtra("burstStagger", metadata.getInt("burstStagger"));
+        }
+        if (metadata.hasKey("rttOnly")) {
+            metadataIntent.putExtra("rttOnly", metadata.getBoolean("rttOnly"));
+        }
+        if (metadata.hasKey("accuracy")) {
+            metadataIntent.putExtra("accuracy", metadata.getInt("accuracy"));
+        }
+        if (metadata.hasKey("minSeriesDelay")) {
+            metadataIntent.putExtra("minSeriesDelay", metadata.getInt("minSeriesDelay"));
+        }
+        if (metadata.hasKey("maxSeriesDelay")) {
+            metadataIntent.putExtra("maxSeriesDelay", metadata.getInt("maxSeriesDelay"));
+        }
         return metadataIntent;
     }
 
+    private static void acceptRetryExtra(ReadableMap metadata, Intent metadataIntent) {
+        if (!metadata.hasKey(RETRY_EXTRA) || metadata.isNull(RETRY_EXTRA)) {
+            return;
+        }
+        ReadableMap retry = metadata.getMap(RETRY_EXTRA);
+        Bundle retryBundle = new Bundle();
+        if (retry.hasKey("baseDelay")) {
+            retryBundle.putLong("baseDelay", retry.getInt("baseDelay"));
+        }
+        if (retry.hasKey("maxDelay")) {
+            retryBundle.putLong("maxDelay", retry.getInt("maxDelay"));
+        }
+        if (retry.hasKey("failureThreshold")) {
+            retryBundle.putInt("failureThreshold", retry.getInt("failureThreshold"));
+        }
+        if (retry.hasKey("openDuration")) {
+            retryBundle.putLong("openDuration", retry.getInt("openDuration"));
+        }
+        metadataIntent.putExtra(RETRY_EXTRA, retryBundle);
+    }
+
+    private static HttpClientConfig toHttpClientConfig(ReadableMap config) {
+        HttpClientConfig httpClientConfig = HttpClientConfig.defaults();
+        if (config.hasKey("maxIdleConnections")) {
+            httpClientConfig.maxIdleConnections = config.getInt("maxIdleConnections");
+        }
+        if (config.hasKey("keepAlive")) {
+            httpClientConfig.keepAliveMillis = config.getInt("keepAlive");
+        }
+        if (config.hasKey("connectTimeout")) {
+            httpClientConfig.connectTimeoutMillis = config.getInt("connectTimeout");
+        }
+        if (config.hasKey("readTimeout")) {
+            httpClientConfig.readTimeoutMillis = config.getInt("readTimeout");
+        }
+        if (config.hasKey("writeTimeout")) {
+            httpClientConfig.writeTimeoutMillis = config.getInt("writeTimeout");
+        }
+        if (config.hasKey("http2")) {
+            httpClientConfig.http2 = config.getBoolean("http2");
+        }
+        if (config.hasKey("gzipMinBytes")) {
+            httpClientConfig.gzipMinBytes = config.getInt("gzipMinBytes");
+        }
+        if (config.hasKey("pingInterval")) {
+            httpClientConfig.pingIntervalMillis = config.getInt("pingInterval");
+        }
+        return httpClientConfig;
+    }
+
     private static void acceptHeadersExtra(ReadableMap metadata, Intent metadataIntent) {
         ReadableMap headers = metadata.getMap("headers");
         ReadableMapKeySetIterator headerKeys = headers.keySetIterator();
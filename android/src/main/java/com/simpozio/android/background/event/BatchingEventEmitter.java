@@ -0,0 +1,93 @@
+package com.simpozio.android.background.event;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.simpozio.android.background.scheduler.BackgroundScheduler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces events on their way to JS: events are queued without locks and cross the bridge as one
+ * {@link #BATCH_EVENT} array when {@link #maxBatchSize} events are queued or the oldest one has waited
+ * {@link #maxLatencyMillis}. With {@code maxLatencyMillis <= 0} every event is emitted at once as a batch
+ * of its own, so JS acknowledges journaled events the same way in both modes.
+ */
+
+public final class BatchingEventEmitter {
+
+    public static final String BATCH_EVENT = "simpozioEvents";
+
+    public volatile long maxLatencyMillis = 16L; // about one frame
+
+    public volatile int maxBatchSize = 32;
+
+    private final DeviceEventManagerModule.RCTDeviceEventEmitter eventEmitter;
+
+    private final ConcurrentLinkedQueue<WritableMap> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            BatchingEventEmitter.this.scheduled.set(false);
+            BatchingEventEmitter.this.flush();
+        }
+    };
+
+    public BatchingEventEmitter(DeviceEventManagerModule.RCTDeviceEventEmitter eventEmitter) {
+        this.eventEmitter = eventEmitter;
+    }
+
+    public void emit(WritableMap event) {
+        long maxLatency = this.maxLatencyMillis;
+        if (maxLatency <= 0) {
+            WritableArray batch = Arguments.createArray();
+            batch.pushMap(event);
+            this.emitAll(batch);
+            return;
+        }
+        this.queue.offer(event);
+        if (this.queued.incrementAndGet() >= this.maxBatchSize) {
+            this.flush();
+        } else if (this.scheduled.compareAndSet(false, true)) {
+            BackgroundScheduler.scheduleTimer(this.flushTask, maxLatency);
+        }
+    }
+
+    /**
+     * Emits queued events, then {@code events} as one more batch.
+     */
+
+    public synchronized void emitAll(WritableArray events) {
+        this.flush();
+        if (events.size() > 0) {
+            this.eventEmitter.emit(BATCH_EVENT, events);
+        }
+    }
+
+    /**
+     * Emits everything queued so far as one batch; serialized so batches keep event order.
+     */
+
+    public synchronized void flush() {
+        WritableArray batch = null;
+        WritableMap event;
+        while ((event = this.queue.poll()) != null) {
+            this.queued.decrementAndGet();
+            if (batch == null) {
+                batch = Arguments.createArray();
+            }
+            batch.pushMap(event);
+        }
+        if (batch != null) {
+            this.eventEmitter.emit(BATCH_EVENT, batch);
+        }
+    }
+}
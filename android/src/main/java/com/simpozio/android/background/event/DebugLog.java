@@ -0,0 +1,73 @@
+package com.simpozio.android.background.event;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.simpozio.android.background.heartbeat.DateFormatted;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size in-memory ring of debug records. Writers claim a sequence number and overwrite the oldest slot
+ * without locks, readers take the records on demand, so debug output costs no IPC or bridge traffic.
+ */
+
+public final class DebugLog {
+
+    private static final int CAPACITY = 512;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final AtomicReferenceArray<Record> RECORDS = new AtomicReferenceArray<>(CAPACITY);
+
+    private DebugLog() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void log(String service, String message) {
+        long sequence = SEQUENCE.getAndIncrement();
+        RECORDS.set((int) (sequence % CAPACITY), new Record(sequence, System.currentTimeMillis(), service, message));
+    }
+
+    /**
+     * @return array of objects {"sequence":"number", "timestamp":"string", "service":"string", "message":"string"},
+     * oldest first; records overwritten while reading are skipped
+     */
+
+    public static WritableArray dump() {
+        WritableArray records = Arguments.createArray();
+        long end = SEQUENCE.get();
+        for (long sequence = Math.max(0L, end - CAPACITY); sequence < end; sequence += 1) {
+            Record record = RECORDS.get((int) (sequence % CAPACITY));
+            if (record != null && record.sequence == sequence) {
+                records.pushMap(record.toWritableMap());
+            }
+        }
+        return records;
+    }
+
+    private static final class Record {
+
+        final long sequence;
+        final long timestamp;
+        final String service;
+        final String message;
+
+        Record(long sequence, long timestamp, String service, String message) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.service = service;
+            this.message = message;
+        }
+
+        WritableMap toWritableMap() {
+            WritableMap record = Arguments.createMap();
+            record.putDouble("sequence", this.sequence);
+            record.putString("timestamp", DateFormatted.at(this.timestamp).timestamp());
+            record.putString("service", this.service);
+            record.putString("message", this.message);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.simpozio.android.background.event;
+
+import android.os.Bundle;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+import com.simpozio.android.background.heartbeat.DateFormatted;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Feedback event with typed primitive fields. Instances are pooled: the publisher at the end of the chain
+ * calls {@link #recycle()} once the event has been delivered, subscribers must not keep a reference.
+ * Fields are converted to the bridge (numbers and booleans as such) or to a Bundle only at delivery,
+ * the timestamp is formatted only then too.
+ */
+
+public final class Event {
+
+    private static final int MAX_FIELDS = 16;
+    private static final int POOL_SIZE = 16;
+
+    private static final byte STRING = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte BOOLEAN = 3;
+
+    private static final AtomicReferenceArray<Event> POOL = new AtomicReferenceArray<>(POOL_SIZE);
+
+    private final String[] keys = new String[MAX_FIELDS];
+    private final byte[] kinds = new byte[MAX_FIELDS];
+    private final long[] longs = new long[MAX_FIELDS];
+    private final double[] doubles = new double[MAX_FIELDS];
+    private final String[] strings = new String[MAX_FIELDS];
+
+    private int size = 0;
+
+    private String type;
+
+    private long timestamp;
+
+    private Event() {
+    }
+
+    /**
+     * @return pooled or new event of the given type, timestamped now
+     */
+
+    public static Event obtain(String type) {
+        Event event = null;
+        for (int i = 0; i < POOL_SIZE && event == null; i += 1) {
+            if (POOL.get(i) != null) {
+                event = POOL.getAndSet(i, null);
+            }
+        }
+        if (event == null) {
+            event = new Event();
+        }
+        event.type = type;
+        event.timestamp = System.currentTimeMillis();
+        return event;
+    }
+
+    /**
+     * Returns the event to the pool, it must not be used afterwards.
+     */
+
+    public void recycle() {
+        for (int i = 0; i < this.size; i += 1) {
+            this.keys[i] = null;
+            this.strings[i] = null;
+        }
+        this.size = 0;
+        this.type = null;
+        for (int i = 0; i < POOL_SIZE; i += 1) {
+            if (POOL.get(i) == null && POOL.compareAndSet(i, null, this)) {
+                return;
+            }
+        }
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public Event putString(String key, String value) {
+        int index = this.index(key);
+        this.kinds[index] = STRING;
+        this.strings[index] = value;
+        return this;
+    }
+
+    public Event putLong(String key, long value) {
+        int index = this.index(key);
+        this.kinds[index] = LONG;
+        this.longs[index] = value;
+        return this;
+    }
+
+    public Event putDouble(String key, double value) {
+        int index = this.index(key);
+        this.kinds[index] = DOUBLE;
+        this.doubles[index] = value;
+        return this;
+    }
+
+    public Event putBoolean(String key, boolean value) {
+        int index = this.index(key);
+        this.kinds[index] = BOOLEAN;
+        this.longs[index] = value ? 1L : 0L;
+        return this;
+    }
+
+    /**
+     * @return string field, or null if there is no such field or it is not a string
+     */
+
+    public String getString(String key) {
+        for (int i = 0; i < this.size; i += 1) {
+            if (this.keys[i].equals(key)) {
+                return this.kinds[i] == STRING ? this.strings[i] : null;
+            }
+        }
+        return null;
+    }
+
+    public WritableMap toWritableMap() {
+        WritableMap event = Arguments.createMap();
+        event.putString(Events.EVENT_TYPE, this.type);
+        event.putString(Events.TIMESTAMP_FIELD, DateFormatted.at(this.timestamp).timestamp());
+        for (int i = 0; i < this.size; i += 1) {
+            switch (this.kinds[i]) {
+                case LONG:
+                    event.putDouble(this.keys[i], this.longs[i]);
+                    break;
+                case DOUBLE:
+                    event.putDouble(this.keys[i], this.doubles[i]);
+                    break;
+                case BOOLEAN:
+                    event.putBoolean(this.keys[i], this.longs[i] != 0L);
+                    break;
+                default:
+                    event.putString(this.keys[i], this.strings[i]);
+            }
+        }
+        return event;
+    }
+
+    /**
+     * @return copy for the broadcast fallback, values keep their types, see {@link Events#toWritableMap(Bundle)}
+     */
+
+    public Bundle toBundle() {
+        Bundle event = new Bundle();
+        event.putString(Events.EVENT_TYPE, this.type);
+        event.putString(Events.TIMESTAMP_FIELD, DateFormatted.at(this.timestamp).timestamp());
+        for (int i = 0; i < this.size; i += 1) {
+            switch (this.kinds[i]) {
+                case LONG:
+                    event.putLong(this.keys[i], this.longs[i]);
+                    break;
+                case DOUBLE:
+                    event.putDouble(this.keys[i], this.doubles[i]);
+                    break;
+                case BOOLEAN:
+                    event.putBoolean(this.keys[i], this.longs[i] != 0L);
+                    break;
+                default:
+                    event.putString(this.keys[i], this.strings[i]);
+            }
+        }
+        return event;
+    }
+
+    /**
+     * @return copy for the event journal, values keep their types
+     */
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put(Events.EVENT_TYPE, this.type);
+        event.put(Events.TIMESTAMP_FIELD, DateFormatted.at(this.timestamp).timestamp());
+        for (int i = 0; i < this.size; i += 1) {
+            switch (this.kinds[i]) {
+                case LONG:
+                    event.put(this.keys[i], this.longs[i]);
+                    break;
+                case DOUBLE:
+                    event.put(this.keys[i], this.doubles[i]);
+                    break;
+                case BOOLEAN:
+                    event.put(this.keys[i], this.longs[i] != 0L);
+                    break;
+                default:
+                    event.put(this.keys[i], this.strings[i]);
+            }
+        }
+        return event;
+    }
+
+    private int index(String key) {
+        for (int i = 0; i < this.size; i += 1) {
+            if (this.keys[i].equals(key)) {
+                return i;
+            }
+        }
+        if (this.size == MAX_FIELDS) {
+            throw new IllegalStateException("Too many event fields: " + key);
+        }
+        this.keys[this.size] = key;
+        return this.size++;
+    }
+}
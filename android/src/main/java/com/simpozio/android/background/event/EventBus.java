@@ -0,0 +1,50 @@
+package com.simpozio.android.background.event;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process publish/subscribe bus for feedback events. Publishing walks a copy-on-write snapshot of
+ * subscribers on the caller thread, without locks and without the ActivityManager round trip of a broadcast.
+ */
+
+public final class EventBus implements EventPublisher {
+
+    private static final EventBus DEFAULT = new EventBus();
+
+    private final CopyOnWriteArrayList<EventPublisher> subscribers = new CopyOnWriteArrayList<>();
+
+    public static EventBus get() {
+        return DEFAULT;
+    }
+
+    public void subscribe(EventPublisher subscriber) {
+        this.subscribers.addIfAbsent(subscriber);
+    }
+
+    public void unsubscribe(EventPublisher subscriber) {
+        this.subscribers.remove(subscriber);
+    }
+
+    public boolean hasSubscribers() {
+        return !this.subscribers.isEmpty();
+    }
+
+    /**
+     * @return false if nobody in this process is subscribed, e.g. services run in a separate process,
+     * the caller falls back to a broadcast then
+     */
+
+    public boolean publish(Event event) {
+        boolean delivered = false;
+        for (EventPublisher subscriber : this.subscribers) {
+            subscriber.fireEvent(event);
+            delivered = true;
+        }
+        return delivered;
+    }
+
+    @Override
+    public void fireEvent(Event event) {
+        this.publish(event);
+    }
+}
@@ -0,0 +1,279 @@
+package com.simpozio.android.background.event;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Append-only journal of published events, so events sent while JS is paused or torn down can be replayed.
+ *
+ * Records {@code [int length][long sequence][utf-8 json]} are written into memory-mapped segments of
+ * {@link #SEGMENT_BYTES}; a full segment is rotated and only the previous one is kept. The length is written
+ * last, so a record torn by process death ends the segment. The last sequence acknowledged by JS is kept
+ * in a separate file, replay returns every later record.
+ */
+
+public final class EventJournal {
+
+    public static final String SEQUENCE_FIELD = "sequence";
+
+    private static final int SEGMENT_BYTES = 256 * 1024; // 256 KiB
+    private static final int HEADER_BYTES = 4 + 8;
+
+    private static final String DIRECTORY = "events";
+    private static final String SEGMENT_PREFIX = "events.";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String ACK_FILE = "events.ack";
+
+    private static EventJournal journal;
+
+    private final File directory;
+    private final File ackFile;
+
+    private long segment = 0;
+    private MappedByteBuffer active;
+    private MappedByteBuffer previous;
+
+    private long sequence = 0;
+    private long acknowledged = 0;
+
+    private EventJournal(File directory) throws IOException {
+        this.directory = directory;
+        this.ackFile = new File(directory, ACK_FILE);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create " + directory);
+        }
+        this.open();
+    }
+
+    /**
+     * @return process-wide journal in {@code filesDir}, or null if it can not be opened
+     */
+
+    public static synchronized EventJournal get(File filesDir) {
+        if (journal == null) {
+            try {
+                journal = new EventJournal(new File(filesDir, DIRECTORY));
+            } catch (IOException ignored) {
+                return null;
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Assigns the next sequence number, stores it in the event as {@link #SEQUENCE_FIELD} and journals the event.
+     *
+     * @return sequence number, or -1 if the event could not be written
+     */
+
+    public synchronized long append(Event event) {
+        long sequence = this.sequence + 1;
+        event.putLong(SEQUENCE_FIELD, sequence);
+        byte[] record;
+        try {
+            record = event.toJson().toString().getBytes("UTF-8");
+        } catch (JSONException | UnsupportedEncodingException cause) {
+            return -1L;
+        }
+        if (HEADER_BYTES + record.length > SEGMENT_BYTES - 4) {
+            return -1L; // would never fit
+        }
+        try {
+            if (this.active.remaining() < HEADER_BYTES + record.length + 4) {
+                this.rotate();
+            }
+        } catch (IOException cause) {
+            return -1L;
+        }
+        int position = this.active.position();
+        this.active.position(position + 4);
+        this.active.putLong(sequence);
+        this.active.put(record);
+        this.active.putInt(this.active.position(), 0); // ends the segment in case stale bytes follow
+        this.active.putInt(position, record.length);
+        this.sequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Marks every event up to {@code sequence} as delivered to JS.
+     */
+
+    public synchronized void acknowledge(long sequence) {
+        if (sequence <= this.acknowledged) {
+            return;
+        }
+        this.acknowledged = Math.min(sequence, this.sequence);
+        try {
+            RandomAccessFile ack = new RandomAccessFile(this.ackFile, "rw");
+            try {
+                ack.seek(0);
+                ack.writeLong(this.acknowledged);
+            } finally {
+                ack.close();
+            }
+        } catch (IOException ignored) {
+            // replays a few delivered events at worst
+        }
+    }
+
+    /**
+     * @return sequence number of the last journaled event
+     */
+
+    public synchronized long lastSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * @return events not acknowledged yet up to {@code upTo} and not in {@code excluded}, oldest first
+     */
+
+    public synchronized WritableArray unacknowledged(long upTo, Set<Long> excluded) {
+        WritableArray events = Arguments.createArray();
+        if (this.previous != null) {
+            this.replay(this.previous, upTo, excluded, events);
+        }
+        this.replay(this.active, upTo, excluded, events);
+        return events;
+    }
+
+    private void replay(MappedByteBuffer segment, long upTo, Set<Long> excluded, WritableArray events) {
+        int position = 0;
+        int end = segment == this.active ? this.active.position() : SEGMENT_BYTES;
+        while (position + HEADER_BYTES <= end) {
+            int length = segment.getInt(position);
+            if (length <= 0 || position + HEADER_BYTES + length > end) {
+                break;
+            }
+            long sequence = segment.getLong(position + 4);
+            if (sequence > this.acknowledged && sequence <= upTo && !excluded.contains(sequence)) {
+                try {
+                    byte[] record = new byte[length];
+                    for (int i = 0; i < length; i += 1) {
+                        record[i] = segment.get(position + HEADER_BYTES + i);
+                    }
+                    events.pushMap(toWritableMap(new JSONObject(new String(record, "UTF-8"))));
+                } catch (JSONException | UnsupportedEncodingException ignored) {
+                    // skip broken record
+                }
+            }
+            position += HEADER_BYTES + length;
+        }
+    }
+
+    private void open() throws IOException {
+        long last = -1;
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long index = segmentIndex(file.getName());
+                if (index > last) {
+                    last = index;
+                }
+            }
+        }
+        this.segment = Math.max(0, last);
+        if (this.segment > 0 && segmentFile(this.segment - 1).exists()) {
+            this.previous = map(segmentFile(this.segment - 1));
+            this.scan(this.previous);
+        }
+        this.active = map(segmentFile(this.segment));
+        this.active.position(this.scan(this.active));
+        if (this.ackFile.length() >= 8) {
+            RandomAccessFile ack = new RandomAccessFile(this.ackFile, "r");
+            try {
+                this.acknowledged = ack.readLong();
+            } finally {
+                ack.close();
+            }
+        }
+        // segments lost, keep new events above the acknowledged ones
+        this.sequence = Math.max(this.sequence, this.acknowledged);
+    }
+
+    /**
+     * @return position after the last complete record, also advances {@link #sequence}
+     */
+
+    private int scan(MappedByteBuffer segment) {
+        int position = 0;
+        while (position + HEADER_BYTES <= SEGMENT_BYTES) {
+            int length = segment.getInt(position);
+            if (length <= 0 || position + HEADER_BYTES + length > SEGMENT_BYTES) {
+                break;
+            }
+            this.sequence = Math.max(this.sequence, segment.getLong(position + 4));
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private void rotate() throws IOException {
+        File stale = segmentFile(this.segment - 1);
+        if (stale.exists() && !stale.delete()) {
+            throw new IOException("Can not delete " + stale);
+        }
+        this.segment += 1;
+        this.previous = this.active;
+        this.active = map(segmentFile(this.segment));
+    }
+
+    private File segmentFile(long index) {
+        return new File(this.directory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX);
+    }
+
+    private static long segmentIndex(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile segment = new RandomAccessFile(file, "rw");
+        try {
+            segment.setLength(SEGMENT_BYTES);
+            return segment.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        } finally {
+            segment.close(); // the mapping stays valid
+        }
+    }
+
+    private static WritableMap toWritableMap(JSONObject record) throws JSONException {
+        WritableMap event = Arguments.createMap();
+        Iterator<?> keys = record.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object value = record.get(key);
+            if (value instanceof Boolean) {
+                event.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Number) {
+                event.putDouble(key, ((Number) value).doubleValue());
+            } else if (value == JSONObject.NULL) {
+                event.putNull(key);
+            } else {
+                event.putString(key, value.toString());
+            }
+        }
+        event.putBoolean("replayed", true);
+        return event;
+    }
+}
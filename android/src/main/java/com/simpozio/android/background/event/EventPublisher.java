@@ -1,7 +1,9 @@
 package com.simpozio.android.background.event;
 
-import android.os.Bundle;
+/**
+ * Receives events synchronously; an event is pooled, so it must be converted or copied before returning.
+ */
 
 public interface EventPublisher {
-    void fireEvent(Bundle event);
+    void fireEvent(Event event);
 }
@@ -4,7 +4,9 @@ import android.os.Bundle;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.WritableMap;
-import com.simpozio.android.background.heartbeat.DateFormatted;
+import com.simpozio.android.background.http.RetryPolicy;
+import com.simpozio.android.background.scheduler.ScheduleLag;
+import com.simpozio.android.background.stats.LatencyStats;
 
 import org.joda.time.DateTime;
 
@@ -12,15 +14,15 @@ public final class Events {
 
     public static final String EVENT_TYPE = "type";
 
-    private static final String HEARTBEAT_FAILED = "heartbeatFailed";
-    private static final String PING_FAILED = "pingFailed";
+    static final String HEARTBEAT_FAILED = "heartbeatFailed";
+    static final String PING_FAILED = "pingFailed";
     private static final String SERVER_TIMESTAMP = "serverTimestamp";
     private static final String START_FAILED = "startFailed";
     private static final String STOP_FAILED = "stopFailed";
-    private static final String EXCEPTION = "exception";
+    static final String EXCEPTION = "exception";
     private static final String STARTED = "started";
     private static final String STOPPED = "stopped";
-    private static final String RESUME = "resume";
+    static final String RESUME = "resume";
     private static final String DEVIATION = "deviation";
     private static final String DEBUG = "debug";
 
@@ -30,14 +32,14 @@ public final class Events {
     private static final String HEARTBEAT = "heartbeat";
     private static final String TRACE = "trace";
 
-    private static final String TIMESTAMP_FIELD = "timestamp";
+    static final String TIMESTAMP_FIELD = "timestamp";
 
     private Events() {
         throw new UnsupportedOperationException();
     }
 
-    public static Bundle debugPingService (String message) {
-        Bundle event = createEvent(DEBUG);
+    public static Event debugPingService (String message) {
+        Event event = createEvent(DEBUG);
         event.putString("message", message);
         return acceptPingService(event);
     }
@@ -53,8 +55,8 @@ public final class Events {
      * }
      */
 
-    public static Bundle pingException(Exception cause) {
-        Bundle event = createEvent(EXCEPTION);
+    public static Event pingException(Throwable cause) {
+        Event event = createEvent(EXCEPTION);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptPingService(event);
@@ -64,15 +66,15 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "exception", // discriminator
-     *     "service"   : "heartbeat",      // service name
+     *     "service"   : "heartbeat", // service name
      *     "timestamp" : "string",    // event timestamp
      *     "cause"     : "string",    // Exception type canonical name
      *     "message"   : "string"     // Exception comment message
      * }
      */
 
-    public static Bundle heartbeatException(Exception cause) {
-        Bundle event = createEvent(EXCEPTION);
+    public static Event heartbeatException(Throwable cause) {
+        Event event = createEvent(EXCEPTION);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptHeartbeatService(event);
@@ -89,8 +91,8 @@ public final class Events {
      * }
      */
 
-    public static Bundle traceException(Exception cause) {
-        Bundle event = createEvent(EXCEPTION);
+    public static Event traceException(Throwable cause) {
+        Event event = createEvent(EXCEPTION);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptTraceService(event);
@@ -100,32 +102,38 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "resume",  // discriminator
-     *     "service"   : "ping",  // service name (heartbeat, ping, trace)
+     *     "service"   : "ping",    // service name (heartbeat, ping, trace)
      *     "timestamp" : "string",  // event timestamp
-     *     "duration"  : "string"   // duration from last fail
+     *     "duration"  : "number",  // duration from last fail
+     *     "attempt"   : "number",  // failed attempts in a row before resume
+     *     "backoff"   : "number",  // last retry delay, millis
+     *     "circuit"   : "string"   // circuit breaker state before resume: closed, open, half_open
      * }
      */
 
-    public static Bundle pingResume(long durationFromLastFail) {
-        Bundle event = createEvent(RESUME);
-        event.putString("duration", String.valueOf(durationFromLastFail));
-        return acceptPingService(acceptTimestamp(event));
+    public static Event pingResume(long durationFromLastFail, RetryPolicy retry) {
+        Event event = createEvent(RESUME);
+        event.putLong("duration", durationFromLastFail);
+        return acceptPingService(acceptRetry(event, retry));
     }
 
     /**
      * @return event-object with next structure:
      * {
      *     "type"      : "resume",  // discriminator
-     *     "service"   : "heartbeat",  // service name (heartbeat, ping, trace)
+     *     "service"   : "heartbeat",// service name (heartbeat, ping, trace)
      *     "timestamp" : "string",  // event timestamp
-     *     "duration"  : "string"   // duration from last fail
+     *     "duration"  : "number",  // duration from last fail
+     *     "attempt"   : "number",  // failed attempts in a row before resume
+     *     "backoff"   : "number",  // last retry delay, millis
+     *     "circuit"   : "string"   // circuit breaker state before resume: closed, open, half_open
      * }
      */
 
-    public static Bundle heartbeatResume(long durationFromLastFail) {
-        Bundle event = createEvent(RESUME);
-        event.putString("duration", String.valueOf(durationFromLastFail));
-        return acceptHeartbeatService(acceptTimestamp(event));
+    public static Event heartbeatResume(long durationFromLastFail, RetryPolicy retry) {
+        Event event = createEvent(RESUME);
+        event.putLong("duration", durationFromLastFail);
+        return acceptHeartbeatService(acceptRetry(event, retry));
     }
 
     /**
@@ -134,14 +142,14 @@ public final class Events {
      *     "type"      : "resume",  // discriminator
      *     "service"   : "trace",  // service name (heartbeat, ping, trace)
      *     "timestamp" : "string",  // event timestamp
-     *     "duration"  : "string"   // duration from last fail
+     *     "duration"  : "number"   // duration from last fail
      * }
      */
 
-    public static Bundle traceResume(long durationFromLastFail) {
-        Bundle event = createEvent(RESUME);
-        event.putString("duration", String.valueOf(durationFromLastFail));
-        return acceptTraceService(acceptTimestamp(event));
+    public static Event traceResume(long durationFromLastFail) {
+        Event event = createEvent(RESUME);
+        event.putLong("duration", durationFromLastFail);
+        return acceptTraceService(event);
     }
 
     /**
@@ -149,16 +157,20 @@ public final class Events {
      * {
      *     "type"             : "serverTimestamp",  // discriminator
      *     "timestamp"        : "string",           // event timestamp
-     *     "deviation"        : "string",           // server timestamp deviation
+     *     "deviation"        : "number",           // server timestamp deviation, local - server millis
+     *     "error"            : "number",           // deviation is known within +- error millis
+     *     "skew"             : "number",           // local clock skew against server, ppm
      *     "serverTimestamp"  : "string"            // timestamp from server with next format: yyyy-MM-dd'T'HH:mm:ss.SSSZ
      * }
      */
 
-    public static Bundle serverTimestamp(DateTime timestamp, long deviationMillis) {
-        Bundle event = createEvent(SERVER_TIMESTAMP);
-        event.putString(DEVIATION, String.valueOf(deviationMillis));
+    public static Event serverTimestamp(DateTime timestamp, long deviationMillis, long errorMillis, double skewPpm) {
+        Event event = createEvent(SERVER_TIMESTAMP);
+        event.putLong(DEVIATION, deviationMillis);
+        event.putLong("error", errorMillis);
+        event.putDouble("skew", skewPpm);
         event.putString(SERVER_TIMESTAMP, timestamp.toString());
-        return acceptTimestamp(event);
+        return event;
     }
 
     /**
@@ -170,7 +182,7 @@ public final class Events {
      * }
      */
 
-    public static Bundle pingStarted() {
+    public static Event pingStarted() {
         return acceptPingService(createEvent(STARTED));
     }
 
@@ -178,12 +190,12 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "started",   // discriminator
-     *     "service"   : "heartbeat",    // service name
+     *     "service"   : "heartbeat", // service name
      *     "timestamp" : "string"     // event timestamp
      * }
      */
 
-    public static Bundle heartbeatStarted() {
+    public static Event heartbeatStarted() {
         return acceptHeartbeatService(createEvent(STARTED));
     }
 
@@ -196,7 +208,7 @@ public final class Events {
      * }
      */
 
-    public static Bundle traceStarted() {
+    public static Event traceStarted() {
         return acceptTraceService(createEvent(STARTED));
     }
 
@@ -206,13 +218,13 @@ public final class Events {
      *     "type"      : "stopped", // discriminator
      *     "service"   : "ping",    // service name
      *     "timestamp" : "string",  // event timestamp
-     *     "uptime"    : "string"   // uptime duration of the HeartbeatRunner
+     *     "uptime"    : "number"   // uptime duration of the HeartbeatRunner
      * }
      */
 
-    public static Bundle pingStopped(long uptime) {
-        Bundle event = createEvent(STOPPED);
-        event.putString("uptime", String.valueOf(uptime));
+    public static Event pingStopped(long uptime) {
+        Event event = createEvent(STOPPED);
+        event.putLong("uptime", uptime);
         return acceptPingService(event);
     }
 
@@ -220,31 +232,60 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "stopped", // discriminator
-     *     "service"   : "heartbeat",  // service name
+     *     "service"   : "heartbeat",// service name
      *     "timestamp" : "string",  // event timestamp
-     *     "uptime"    : "string"   // uptime duration of the HeartbeatRunner
+     *     "uptime"    : "number"   // uptime duration of the HeartbeatRunner
      * }
      */
 
-    public static Bundle heartbeatStopped(long uptime) {
-        Bundle event = createEvent(STOPPED);
-        event.putString("uptime", String.valueOf(uptime));
+    public static Event heartbeatStopped(long uptime) {
+        Event event = createEvent(STOPPED);
+        event.putLong("uptime", uptime);
         return acceptHeartbeatService(event);
     }
 
+    /**
+     * @return event-object with next structure:
+     * {
+     *     "type"       : "stopped",   // discriminator
+     *     "service"    : "heartbeat", // service name
+     *     "timestamp"  : "string",    // event timestamp
+     *     "uptime"     : "number",    // uptime duration of the HeartbeatRunner
+     *     "ticks"      : "number",    // heartbeats scheduled
+     *     "skipped"    : "number",    // grid points skipped by fixed rate schedule
+     *     "lagAverage" : "number",    // average delay of heartbeat against its deadline, millis
+     *     "lagMax"     : "number",    // max delay of heartbeat against its deadline, millis
+     *     "rttP50"     : "number",    // median heartbeat round trip over the last requests, millis
+     *     "rttP90"     : "number",    // 90th percentile heartbeat round trip, millis
+     *     "rttP99"     : "number"     // 99th percentile heartbeat round trip, millis
+     * }
+     */
+
+    public static Event heartbeatStopped(long uptime, ScheduleLag lag, LatencyStats roundTrips) {
+        Event event = heartbeatStopped(uptime);
+        event.putLong("ticks", lag.ticks());
+        event.putLong("skipped", lag.skipped());
+        event.putLong("lagAverage", lag.average());
+        event.putLong("lagMax", lag.max());
+        event.putLong("rttP50", roundTrips.p50());
+        event.putLong("rttP90", roundTrips.p90());
+        event.putLong("rttP99", roundTrips.p99());
+        return event;
+    }
+
     /**
      * @return event-object with next structure:
      * {
      *     "type"      : "stopped", // discriminator
      *     "service"   : "trace",  // service name
      *     "timestamp" : "string",  // event timestamp
-     *     "uptime"    : "string"   // uptime duration of the HeartbeatRunner
+     *     "uptime"    : "number"   // uptime duration of the HeartbeatRunner
      * }
      */
 
-    public static Bundle traceStopped(long uptime) {
-        Bundle event = createEvent(STOPPED);
-        event.putString("uptime", String.valueOf(uptime));
+    public static Event traceStopped(long uptime) {
+        Event event = createEvent(STOPPED);
+        event.putLong("uptime", uptime);
         return acceptTraceService(event);
     }
 
@@ -252,15 +293,15 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "startFailed", // discriminator
-     *     "service"   : "ping",      // service name
+     *     "service"   : "ping",        // service name
      *     "timestamp" : "string",      // event timestamp
      *     "cause"     : "string",      // Exception type canonical name
      *     "message"   : "string"       // Exception comment message
      * }
      */
 
-    public static Bundle pingStartFailed(Exception cause) {
-        Bundle event = createEvent(START_FAILED);
+    public static Event pingStartFailed(Exception cause) {
+        Event event = createEvent(START_FAILED);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptPingService(event);
@@ -270,15 +311,15 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "startFailed", // discriminator
-     *     "service"   : "heartbeat",      // service name
+     *     "service"   : "heartbeat",   // service name
      *     "timestamp" : "string",      // event timestamp
      *     "cause"     : "string",      // Exception type canonical name
      *     "message"   : "string"       // Exception comment message
      * }
      */
 
-    public static Bundle heartbeatStartFailed(Exception cause) {
-        Bundle event = createEvent(START_FAILED);
+    public static Event heartbeatStartFailed(Exception cause) {
+        Event event = createEvent(START_FAILED);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptHeartbeatService(event);
@@ -295,8 +336,8 @@ public final class Events {
      * }
      */
 
-    public static Bundle traceStartFailed(Exception cause) {
-        Bundle event = createEvent(START_FAILED);
+    public static Event traceStartFailed(Exception cause) {
+        Event event = createEvent(START_FAILED);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptTraceService(event);
@@ -306,15 +347,15 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "stopFailed",  // discriminator
-     *     "service"   : "ping",      // service name
+     *     "service"   : "ping",        // service name
      *     "timestamp" : "string",      // event timestamp
      *     "cause"     : "string",      // Exception type canonical name
      *     "message"   : "string"       // Exception comment message
      * }
      */
 
-    public static Bundle pingStopFailed(Exception cause) {
-        Bundle event = createEvent(STOP_FAILED);
+    public static Event pingStopFailed(Exception cause) {
+        Event event = createEvent(STOP_FAILED);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptPingService(event);
@@ -324,15 +365,15 @@ public final class Events {
      * @return event-object with next structure:
      * {
      *     "type"      : "stopFailed",  // discriminator
-     *     "service"   : "heartbeat",      // service name
+     *     "service"   : "heartbeat",   // service name
      *     "timestamp" : "string",      // event timestamp
      *     "cause"     : "string",      // Exception type canonical name
      *     "message"   : "string"       // Exception comment message
      * }
      */
 
-    public static Bundle heartbeatStopFailed(Exception cause) {
-        Bundle event = createEvent(STOP_FAILED);
+    public static Event heartbeatStopFailed(Exception cause) {
+        Event event = createEvent(STOP_FAILED);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptHeartbeatService(event);
@@ -349,8 +390,8 @@ public final class Events {
      * }
      */
 
-    public static Bundle traceStopFailed(Exception cause) {
-        Bundle event = createEvent(STOP_FAILED);
+    public static Event traceStopFailed(Exception cause) {
+        Event event = createEvent(STOP_FAILED);
         event.putString("cause", cause.getClass().getCanonicalName());
         event.putString("message", cause.getMessage());
         return acceptTraceService(event);
@@ -361,26 +402,30 @@ public final class Events {
      * {
      *     "type"      : "heartbeatFailed", // discriminator
      *     "timestamp" : "string",                 // event timestamp
+     *     "service"   : "heartbeat",              // service name
      *     "message"   : "string",                 // response message or exception comment message
-     *     "code"      : "string",                 // response code or -1
-     *     "cause"     : "string"                  // Exception type canonical name or empty string
+     *     "code"      : "number",                 // response code or -1
+     *     "cause"     : "string",                 // Exception type canonical name or empty string
+     *     "attempt"   : "number",                 // failed attempts in a row
+     *     "backoff"   : "number",                 // delay before the next attempt, millis
+     *     "circuit"   : "string"                  // circuit breaker state: closed, open, half_open
      * }
      */
 
-    public static Bundle heartbeatFailed(int code, String message) {
-        Bundle event = createEvent(HEARTBEAT_FAILED);
-        event.putString("code", String.valueOf(code));
+    public static Event heartbeatFailed(int code, String message, RetryPolicy retry) {
+        Event event = createEvent(HEARTBEAT_FAILED);
+        event.putLong("code", code);
         event.putString("message", message);
         event.putString("cause", "");
-        return event;
+        return acceptHeartbeatService(acceptRetry(event, retry));
     }
 
-    public static Bundle heartbeatFailed(Throwable cause) {
-        Bundle event = createEvent(HEARTBEAT_FAILED);
-        event.putString("code", "-1");
+    public static Event heartbeatFailed(Throwable cause, RetryPolicy retry) {
+        Event event = createEvent(HEARTBEAT_FAILED);
+        event.putLong("code", -1L);
         event.putString("message", cause.getMessage());
         event.putString("cause", cause.getClass().getCanonicalName());
-        return event;
+        return acceptHeartbeatService(acceptRetry(event, retry));
     }
 
     /**
@@ -388,58 +433,74 @@ public final class Events {
      * {
      *     "type"      : "pingFailed", // discriminator
      *     "timestamp" : "string",                 // event timestamp
+     *     "service"   : "ping",                   // service name
      *     "message"   : "string",                 // response message or exception comment message
-     *     "code"      : "string",                 // response code or -1
-     *     "cause"     : "string"                  // Exception type canonical name or empty string
+     *     "code"      : "number",                 // response code or -1
+     *     "cause"     : "string",                 // Exception type canonical name or empty string
+     *     "attempt"   : "number",                 // failed attempts in a row
+     *     "backoff"   : "number",                 // delay before the next attempt, millis
+     *     "circuit"   : "string"                  // circuit breaker state: closed, open, half_open
      * }
      */
 
-    public static Bundle pingFailed(Throwable cause) {
-        Bundle event = createEvent(PING_FAILED);
-        event.putString("code", "-1");
+    public static Event pingFailed(Throwable cause, RetryPolicy retry) {
+        Event event = createEvent(PING_FAILED);
+        event.putLong("code", -1L);
         event.putString("message", cause.getMessage());
         event.putString("cause", cause.getClass().getCanonicalName());
-        return event;
+        return acceptPingService(acceptRetry(event, retry));
     }
 
-    public static Bundle pingFailed(int code, String message) {
-        Bundle event = createEvent(PING_FAILED);
-        event.putString("code", String.valueOf(code));
+    public static Event pingFailed(int code, String message, RetryPolicy retry) {
+        Event event = createEvent(PING_FAILED);
+        event.putLong("code", code);
         event.putString("message", message);
         event.putString("cause", "");
-        return event;
+        return acceptPingService(acceptRetry(event, retry));
     }
 
+    /**
+     * @return event received with the broadcast fallback, see {@link Event#toBundle()}
+     */
+
     public static WritableMap toWritableMap(Bundle eventBundle) {
         WritableMap event = Arguments.createMap();
         for (String key : eventBundle.keySet()) {
-            event.putString(key, eventBundle.getString(key));
+            Object value = eventBundle.get(key);
+            if (value instanceof Boolean) {
+                event.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Number) {
+                event.putDouble(key, ((Number) value).doubleValue());
+            } else {
+                event.putString(key, value == null ? null : value.toString());
+            }
         }
         return event;
     }
 
-    private static Bundle createEvent(String type) {
-        Bundle event = new Bundle();
-        event.putString(EVENT_TYPE, type);
-        return acceptTimestamp(event);
+    private static Event createEvent(String type) {
+        return Event.obtain(type);
     }
 
-    private static Bundle acceptTimestamp(Bundle event) {
-        event.putString(TIMESTAMP_FIELD, DateFormatted.now().timestamp());
+
+    private static Event acceptRetry(Event event, RetryPolicy retry) {
+        event.putLong("attempt", retry.attempt());
+        event.putLong("backoff", retry.backoff());
+        event.putString("circuit", retry.circuit().toString());
         return event;
     }
 
-    private static Bundle acceptPingService(Bundle event) {
+    private static Event acceptPingService(Event event) {
         event.putString(SERVICE, PING);
         return event;
     }
 
-    private static Bundle acceptHeartbeatService(Bundle event) {
+    private static Event acceptHeartbeatService(Event event) {
         event.putString(SERVICE, HEARTBEAT);
         return event;
     }
 
-    private static Bundle acceptTraceService(Bundle event) {
+    private static Event acceptTraceService(Event event) {
         event.putString(SERVICE, TRACE);
         return event;
     }
@@ -0,0 +1,133 @@
+package com.simpozio.android.background.event;
+
+import android.os.SystemClock;
+
+import com.simpozio.android.background.scheduler.BackgroundScheduler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sits between an agent and its publisher and rate limits failure-like events with a token bucket per
+ * event type and service: {@link #burst} events pass at once, then one more per {@link #refillMillis}.
+ * Failed and resume events of a service share one bucket, so they keep their order and the last one
+ * published is always the latest state. Events over the limit are aggregated, the last of them is
+ * published when the next token is available, with two more fields:
+ * {
+ *     "repeated" : "number", // events aggregated into this one
+ *     "window"   : "number"  // millis from the first aggregated event to this one
+ * }
+ */
+
+public final class ThrottlingPublisher implements EventPublisher {
+
+    public volatile int burst = 3;
+
+    public volatile long refillMillis = 30000L; // 30 sec
+
+    private final EventPublisher eventPublisher;
+
+    private static final Set<String> STATE_TYPES = new HashSet<>(Arrays.asList(
+            Events.HEARTBEAT_FAILED, Events.PING_FAILED, Events.RESUME));
+
+    private final Set<String> throttledTypes;
+
+    private final Map<String, Bucket> buckets = new HashMap<>();
+
+    public ThrottlingPublisher(EventPublisher eventPublisher) {
+        this(eventPublisher, Events.HEARTBEAT_FAILED, Events.PING_FAILED, Events.RESUME, Events.EXCEPTION);
+    }
+
+    public ThrottlingPublisher(EventPublisher eventPublisher, String... throttledTypes) {
+        this.eventPublisher = eventPublisher;
+        this.throttledTypes = new HashSet<>(Arrays.asList(throttledTypes));
+    }
+
+    @Override
+    public void fireEvent(Event event) {
+        if (!this.throttledTypes.contains(event.type())) {
+            this.eventPublisher.fireEvent(event);
+            return;
+        }
+        String key = (STATE_TYPES.contains(event.type()) ? "state" : event.type()) + '/' + event.getString("service");
+        Bucket bucket;
+        synchronized (this.buckets) {
+            bucket = this.buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(this.burst);
+                this.buckets.put(key, bucket);
+            }
+        }
+        bucket.offer(event);
+    }
+
+    private final class Bucket implements Runnable {
+
+        private double tokens;
+
+        private long refilled = SystemClock.elapsedRealtime();
+
+        private Event last;
+
+        private int repeated = 0;
+
+        private long windowStart = 0;
+
+        Bucket(int tokens) {
+            this.tokens = tokens;
+        }
+
+        /**
+         * Publishes the event if a token is available, otherwise keeps it for the summary.
+         * Events are published under the bucket lock, so they leave in the order they came.
+         */
+
+        synchronized void offer(Event event) {
+            long now = SystemClock.elapsedRealtime();
+            this.refill(now);
+            if (this.tokens >= 1.0D && this.last == null) {
+                this.tokens -= 1.0D;
+                ThrottlingPublisher.this.eventPublisher.fireEvent(event);
+                return;
+            }
+            if (this.last == null) {
+                this.windowStart = now;
+                long refillMillis = Math.max(1L, ThrottlingPublisher.this.refillMillis);
+                BackgroundScheduler.scheduleTimer(this, (long) Math.ceil((1.0D - this.tokens) * refillMillis));
+            } else {
+                this.last.recycle();
+            }
+            this.last = event;
+            this.repeated += 1;
+        }
+
+        /**
+         * Publishes the summary once a token is available.
+         */
+
+        @Override
+        public synchronized void run() {
+            long now = SystemClock.elapsedRealtime();
+            this.refill(now);
+            Event summary = this.last;
+            if (summary == null) {
+                return;
+            }
+            summary.putLong("repeated", this.repeated);
+            summary.putLong("window", now - this.windowStart);
+            this.tokens = Math.max(0.0D, this.tokens - 1.0D);
+            this.last = null;
+            this.repeated = 0;
+            ThrottlingPublisher.this.eventPublisher.fireEvent(summary);
+        }
+
+        private void refill(long now) {
+            long refillMillis = Math.max(1L, ThrottlingPublisher.this.refillMillis);
+            this.tokens = Math.min(ThrottlingPublisher.this.burst, this.tokens + (double) (now - this.refilled) / refillMillis);
+            this.refilled = now;
+        }
+    }
+}
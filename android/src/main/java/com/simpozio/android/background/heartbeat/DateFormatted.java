@@ -7,7 +7,6 @@ import org.joda.time.DateTime;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 
 
@@ -17,7 +16,12 @@ public abstract class DateFormatted {
     private static final DateFormat DATE_FORMAT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
 
     @SuppressLint("SimpleDateFormat")
-    private static final DateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    private static final DateFormat TIMESTAMP_SECONDS_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.");
+
+    @SuppressLint("SimpleDateFormat")
+    private static final DateFormat TIMESTAMP_ZONE_FORMAT = new SimpleDateFormat("Z");
+
+    private static volatile Second second = new Second(Long.MIN_VALUE, "", "", "");
 
     public abstract String timestamp();
     public abstract String date();
@@ -32,7 +36,9 @@ public abstract class DateFormatted {
             @Override
             public String date() {
                 try {
-                    return DATE_FORMAT.parse(raw).toString();
+                    synchronized (DateFormatted.class) {
+                        return DATE_FORMAT.parse(raw).toString();
+                    }
                 } catch (ParseException e) {
                     return now().date();
                 }
@@ -41,19 +47,73 @@ public abstract class DateFormatted {
     }
 
     public static DateFormatted now() {
-        return new DateFormatted() {
+        return at(System.currentTimeMillis());
+    }
 
-            Date now = new Date();
+    public static DateFormatted at(final long millis) {
+        return new DateFormatted() {
 
             @Override
             public String timestamp() {
-                return TIMESTAMP_FORMAT.format(now);
+                return second(millis).timestamp(millis);
             }
 
             @Override
             public String date() {
-                return DATE_FORMAT.format(now);
+                return second(millis).date;
             }
         };
     }
+
+    /**
+     * Formats the whole second once and publishes it as an immutable snapshot,
+     * so concurrent callers within the same second only fill in the millis.
+     */
+
+    private static Second second(long millis) {
+        long epochSecond = floorSecond(millis);
+        Second current = second;
+        if (current.epochSecond == epochSecond) {
+            return current;
+        }
+        Date date = new Date(epochSecond * 1000L);
+        synchronized (DateFormatted.class) {
+            current = new Second(epochSecond,
+                    TIMESTAMP_SECONDS_FORMAT.format(date),
+                    TIMESTAMP_ZONE_FORMAT.format(date),
+                    DATE_FORMAT.format(date));
+        }
+        second = current;
+        return current;
+    }
+
+    private static long floorSecond(long millis) {
+        return millis >= 0 ? millis / 1000L : (millis - 999L) / 1000L;
+    }
+
+    private static final class Second {
+
+        final long epochSecond;
+        final String timestampPrefix;
+        final String timestampZone;
+        final String date;
+
+        Second(long epochSecond, String timestampPrefix, String timestampZone, String date) {
+            this.epochSecond = epochSecond;
+            this.timestampPrefix = timestampPrefix;
+            this.timestampZone = timestampZone;
+            this.date = date;
+        }
+
+        String timestamp(long millis) {
+            int fraction = (int) (millis - epochSecond * 1000L);
+            return new StringBuilder(timestampPrefix.length() + 3 + timestampZone.length())
+                    .append(timestampPrefix)
+                    .append((char) ('0' + fraction / 100))
+                    .append((char) ('0' + fraction / 10 % 10))
+                    .append((char) ('0' + fraction % 10))
+                    .append(timestampZone)
+                    .toString();
+        }
+    }
 }
@@ -3,97 +3,214 @@ package com.simpozio.android.background.heartbeat;
 import android.os.Bundle;
 
 import com.simpozio.android.background.event.EventPublisher;
+import com.simpozio.android.background.event.Events;
 import com.simpozio.android.background.http.AsyncHttpAgent;
+import com.simpozio.android.background.http.CallTimings;
+import com.simpozio.android.background.http.SharedHttpClient;
+import com.simpozio.android.background.ping.ClockSync;
 
-import org.joda.time.Period;
-import org.joda.time.format.PeriodFormatter;
-import org.joda.time.format.PeriodFormatterBuilder;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.joda.time.DateTime;
 
-import okhttp3.Request;
-import okhttp3.RequestBody;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static java.util.concurrent.TimeUnit.DAYS;
-import static java.util.concurrent.TimeUnit.HOURS;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.concurrent.TimeUnit.MINUTES;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
 
 public final class HeartbeatHttpAgent extends AsyncHttpAgent {
 
-    private static PeriodFormatter PERIOD_FORMATTER = getPeriodFormatter();
+    private static final int MAX_BATCH_RECORDS = 100;
+    private static final int MAX_BATCHES_PER_TICK = 5;
+
+    public volatile HeartbeatQueue queue;
+
+    public volatile String timestampHeader;
+
+    private final AtomicReference<HeartbeatTemplate> template = new AtomicReference<>(null);
+
+    private final AtomicBoolean flushing = new AtomicBoolean();
 
     public HeartbeatHttpAgent(EventPublisher eventPublisher) {
         super(eventPublisher);
     }
 
+    /**
+     * Recompiles the request template, called on every metadata update only.
+     */
+
+    public void update(String url, Bundle headers, Bundle requestBody) {
+        this.template.set(HeartbeatTemplate.compile(url, headers, requestBody));
+    }
+
     @Override
-    public Request prepareRequest() throws JSONException {
+    public Request prepareRequest() {
 
-        Bundle requestBody = this.requestBody.get();
-        String simpozioUrl = this.url.get();
-        Bundle headers = this.headers.get();
+        HeartbeatTemplate template = this.template.get();
 
-        if (headers == null || requestBody == null) {
+        if (template == null) {
             throw illegalState("data is null");
-        } else if (simpozioUrl == null) {
-            throw illegalState("url is null");
         }
 
-        this.next = nextHeartbeatPeriod(requestBody);
-
-        Request.Builder requestBuilder = new Request.Builder();
+        template.validate();
 
-        for (String key : headers.keySet()) {
-            requestBuilder.header(key, headers.getString(key));
+        if (template.period != HeartbeatTemplate.NO_PERIOD) {
+            this.next = template.period;
         }
 
         DateFormatted now = DateFormatted.now();
 
-        return requestBuilder
-                .url(simpozioUrl)
+        return new Request.Builder()
+                .url(template.url)
+                .headers(template.headers)
                 .header("Date", now.date())
-                .post(RequestBody.create(MEDIA_TYPE, prepareRequestBodyContent(requestBody, now)))
+                .post(template.body(now.timestamp()))
                 .build();
     }
 
-    private long nextHeartbeatPeriod(Bundle requestBody) {
+    /**
+     * Passive clock sync: every heartbeat round trip is a clock sample, with the server time taken from
+     * {@link #timestampHeader} (epoch millis or ISO-8601) when configured, otherwise from the second-resolution Date header.
+     */
+
+    @Override
+    protected void onResponse(Response response) {
+        long sent = CallTimings.sentAtMillis(response);
+        long received = CallTimings.receivedAtMillis(response);
+        String timestampHeader = this.timestampHeader;
+        if (timestampHeader != null) {
+            String timestamp = response.header(timestampHeader);
+            if (timestamp != null) {
+                try {
+                    ClockSync.passiveSample(sent, parseTimestamp(timestamp), 1L, received);
+                    return;
+                } catch (IllegalArgumentException ignored) {
+                    // fall back to Date header
+                }
+            }
+        }
+        Date date = response.headers().getDate("Date");
+        if (date != null) {
+            ClockSync.passiveSample(sent, date.getTime(), 1000L, received);
+        }
+    }
 
-        String next = requestBody.getString("next");
+    /**
+     * Keeps heartbeat for delivery after connectivity returns.
+     */
 
-        if (next != null) {
-            Period nextPeriod = PERIOD_FORMATTER.parsePeriod(next);
-            return DAYS.toMillis(nextPeriod.getDays()) +
-                    HOURS.toMillis(nextPeriod.getHours()) +
-                    MINUTES.toMillis(nextPeriod.getMinutes()) +
-                    SECONDS.toMillis(nextPeriod.getSeconds()) +
-                    MILLISECONDS.toMillis(nextPeriod.getMillis());
+    @Override
+    protected void onUndelivered(Request request) {
+        HeartbeatQueue queue = this.queue;
+        if (queue == null || request == null || request.body() == null) {
+            return;
+        }
+        try {
+            Buffer record = new Buffer();
+            request.body().writeTo(record);
+            queue.append(record.readByteString());
+        } catch (IOException cause) {
+            this.fireEvent(Events.heartbeatException(cause));
         }
-        return this.next; // return previous value
     }
 
-    private static String prepareRequestBodyContent(Bundle metadata, DateFormatted now) throws JSONException {
-        if (metadata.containsKey("touchpoint") && metadata.containsKey("state")) {
-            JSONObject content = new JSONObject();
-            for (String key : metadata.keySet()) {
-                content.put(key, metadata.getString(key));
+    /**
+     * Flushes queued heartbeats in batches, a few batches per tick, the rest on the next ticks.
+     * Pipelined mode does not block the tick, see {@link #flushAsync(HeartbeatQueue, Request, int)}.
+     */
+
+    @Override
+    protected void onDelivered(Request request) {
+        HeartbeatQueue queue = this.queue;
+        if (queue == null || queue.isEmpty()) {
+            return;
+        }
+        if (this.pipelined) {
+            if (this.flushing.compareAndSet(false, true)) {
+                this.flushAsync(queue, request, MAX_BATCHES_PER_TICK);
+            }
+            return;
+        }
+        try {
+            for (int i = 0; i < MAX_BATCHES_PER_TICK; i += 1) {
+                HeartbeatQueue.Batch batch = queue.peek(MAX_BATCH_RECORDS);
+                if (batch == null) {
+                    return;
+                }
+                Response response = SharedHttpClient.get(this.gzip).newCall(request.newBuilder()
+                        .header("Date", DateFormatted.now().date())
+                        .post(batch.body)
+                        .build()).execute();
+                boolean delivered = response.isSuccessful();
+                response.close();
+                if (!delivered) {
+                    return;
+                }
+                queue.commit(batch);
             }
-            content.put("timestamp", now.timestamp());
-            return content.toString();
-        } else {
-            throw illegalState("touchpoint and state are required fields");
+        } catch (IOException cause) {
+            this.fireEvent(Events.heartbeatException(cause));
         }
     }
 
-    private static PeriodFormatter getPeriodFormatter() {
-        return new PeriodFormatterBuilder()
-                .appendDays().appendSuffix("d")
-                .appendHours().appendSuffix("h")
-                .appendMinutes().appendSuffix("m")
-                .appendSeconds().appendSuffix("s")
-                .appendMillis().appendSuffix("ms")
-                .toFormatter();
+    /**
+     * Posts one batch at a time without waiting for the response, the callback commits it
+     * and posts the next one, at most {@code batches} in a row.
+     */
+
+    private void flushAsync(final HeartbeatQueue queue, final Request request, final int batches) {
+        final HeartbeatQueue.Batch batch;
+        try {
+            batch = batches > 0 ? queue.peek(MAX_BATCH_RECORDS) : null;
+        } catch (IOException cause) {
+            this.flushing.set(false);
+            this.fireEvent(Events.heartbeatException(cause));
+            return;
+        }
+        if (batch == null) {
+            this.flushing.set(false);
+            return;
+        }
+        SharedHttpClient.get(this.gzip).newCall(request.newBuilder()
+                .header("Date", DateFormatted.now().date())
+                .post(batch.body)
+                .build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException cause) {
+                HeartbeatHttpAgent.this.flushing.set(false);
+                HeartbeatHttpAgent.this.fireEvent(Events.heartbeatException(cause));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                boolean delivered = response.isSuccessful();
+                response.close();
+                if (!delivered) {
+                    HeartbeatHttpAgent.this.flushing.set(false);
+                    return;
+                }
+                try {
+                    queue.commit(batch);
+                } catch (IOException cause) {
+                    HeartbeatHttpAgent.this.flushing.set(false);
+                    HeartbeatHttpAgent.this.fireEvent(Events.heartbeatException(cause));
+                    return;
+                }
+                HeartbeatHttpAgent.this.flushAsync(queue, request, batches - 1);
+            }
+        });
     }
 
+    private static long parseTimestamp(String timestamp) {
+        for (int i = 0; i < timestamp.length(); i += 1) {
+            if (!Character.isDigit(timestamp.charAt(i))) {
+                return DateTime.parse(timestamp).getMillis();
+            }
+        }
+        return Long.parseLong(timestamp);
+    }
 }
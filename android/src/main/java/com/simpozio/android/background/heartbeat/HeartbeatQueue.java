@@ -0,0 +1,256 @@
+package com.simpozio.android.background.heartbeat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+import static com.simpozio.android.background.http.AsyncHttpAgent.MEDIA_TYPE;
+
+/**
+ * Append-only on-disk queue of undelivered heartbeat bodies. Records are stored as
+ * {@code [int length][utf-8 json]}, delivered records are cut off by a persisted head offset,
+ * the file is compacted once the delivered part outgrows the pending one.
+ */
+
+public final class HeartbeatQueue {
+
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024; // 1 MiB
+
+    private static final String QUEUE_FILE = "heartbeat.queue";
+    private static final String HEAD_FILE = "heartbeat.queue.head";
+    private static final String COMPACT_FILE = "heartbeat.queue.compact";
+
+    private static final int LENGTH_BYTES = 4;
+
+    private static final ByteString BATCH_START = ByteString.encodeUtf8("[");
+    private static final ByteString BATCH_SEPARATOR = ByteString.encodeUtf8(",");
+    private static final ByteString BATCH_END = ByteString.encodeUtf8("]");
+
+    private final File file;
+    private final File headFile;
+    private final File compactFile;
+    private final long maxBytes;
+
+    private long head = 0;
+    private long size = 0;
+
+    private long base = 0; // bytes cut off by compaction since open, keeps batch ends valid across it
+
+    public HeartbeatQueue(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    public HeartbeatQueue(File directory, long maxBytes) {
+        this.file = new File(directory, QUEUE_FILE);
+        this.headFile = new File(directory, HEAD_FILE);
+        this.compactFile = new File(directory, COMPACT_FILE);
+        this.maxBytes = maxBytes;
+        try {
+            this.open();
+        } catch (IOException ignored) {
+            this.clear();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return head >= size;
+    }
+
+    public synchronized void append(ByteString record) throws IOException {
+        long recordBytes = LENGTH_BYTES + record.size();
+        if (recordBytes > maxBytes) {
+            return; // would never fit
+        }
+        if (size - head + recordBytes > maxBytes) {
+            // drop a large chunk at once, so a long outage does not rewrite the file on every append
+            this.dropOldest(size - head + recordBytes - maxBytes * 3 / 4);
+        }
+        BufferedSink sink = Okio.buffer(Okio.appendingSink(file));
+        try {
+            sink.writeInt(record.size());
+            sink.write(record);
+        } finally {
+            sink.close();
+        }
+        this.size += recordBytes;
+    }
+
+    /**
+     * @return json array of at most {@code maxRecords} oldest records, or null if the queue is empty
+     */
+
+    public synchronized Batch peek(int maxRecords) throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+        Buffer content = new Buffer().write(BATCH_START);
+        BufferedSource source = Okio.buffer(Okio.source(file));
+        long offset = head;
+        int count = 0;
+        try {
+            source.skip(head);
+            while (offset < size && count < maxRecords) {
+                int length = source.readInt();
+                if (count > 0) {
+                    content.write(BATCH_SEPARATOR);
+                }
+                content.write(source, length);
+                offset += LENGTH_BYTES + length;
+                count += 1;
+            }
+        } finally {
+            source.close();
+        }
+        content.write(BATCH_END);
+        return new Batch(RequestBody.create(MEDIA_TYPE, content.readByteString()), base + offset, count);
+    }
+
+    /**
+     * Marks every record of the batch as delivered, records dropped or compacted away meanwhile are skipped.
+     */
+
+    public synchronized void commit(Batch batch) throws IOException {
+        if (batch.end - base <= head) {
+            return;
+        }
+        this.head = Math.min(size, batch.end - base);
+        if (head >= size) {
+            this.clear();
+        } else if (head > size - head) {
+            this.compact();
+        } else {
+            this.writeHead();
+        }
+    }
+
+    private void open() throws IOException {
+        if (!file.exists()) {
+            this.clear();
+            return;
+        }
+        this.size = validLength();
+        if (size != file.length()) {
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(size); // torn tail of an interrupted append
+            } finally {
+                truncated.close();
+            }
+        }
+        this.head = Math.min(readHead(), size);
+    }
+
+    private long validLength() throws IOException {
+        long length = file.length();
+        long offset = 0;
+        BufferedSource source = Okio.buffer(Okio.source(file));
+        try {
+            while (offset + LENGTH_BYTES <= length) {
+                int recordLength = source.readInt();
+                long next = offset + LENGTH_BYTES + recordLength;
+                if (recordLength < 0 || next > length) {
+                    break;
+                }
+                source.skip(next - offset - LENGTH_BYTES);
+                offset = next;
+            }
+        } finally {
+            source.close();
+        }
+        return offset;
+    }
+
+    private void dropOldest(long bytes) throws IOException {
+        BufferedSource source = Okio.buffer(Okio.source(file));
+        long dropped = 0;
+        try {
+            source.skip(head);
+            while (dropped < bytes && head + dropped < size) {
+                int length = source.readInt();
+                source.skip(length);
+                dropped += LENGTH_BYTES + length;
+            }
+        } finally {
+            source.close();
+        }
+        this.head += dropped;
+        if (head > size - head) {
+            this.compact();
+        } else {
+            this.writeHead();
+        }
+    }
+
+    private void compact() throws IOException {
+        BufferedSource source = Okio.buffer(Okio.source(file));
+        BufferedSink sink = Okio.buffer(Okio.sink(compactFile));
+        try {
+            source.skip(head);
+            sink.writeAll(source);
+        } finally {
+            sink.close();
+            source.close();
+        }
+        // a crash between these two steps replays delivered records instead of misreading the compacted file
+        headFile.delete();
+        if (!compactFile.renameTo(file)) {
+            throw new IOException("unable to compact " + file);
+        }
+        this.base += head;
+        this.size -= head;
+        this.head = 0;
+    }
+
+    private void clear() {
+        this.base += size;
+        this.head = 0;
+        this.size = 0;
+        file.delete();
+        headFile.delete();
+    }
+
+    private long readHead() throws IOException {
+        if (!headFile.exists()) {
+            return 0;
+        }
+        BufferedSource source = Okio.buffer(Okio.source(headFile));
+        try {
+            return source.readLong();
+        } catch (EOFException ignored) {
+            return 0;
+        } finally {
+            source.close();
+        }
+    }
+
+    private void writeHead() throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.sink(headFile));
+        try {
+            sink.writeLong(head);
+        } finally {
+            sink.close();
+        }
+    }
+
+    public static final class Batch {
+
+        public final RequestBody body;
+        public final int count;
+
+        private final long end;
+
+        private Batch(RequestBody body, long end, int count) {
+            this.body = body;
+            this.end = end;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.simpozio.android.background.heartbeat;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Utf8;
+
+import static com.simpozio.android.background.http.AsyncHttpAgent.MEDIA_TYPE;
+
+/**
+ * Heartbeat body streamed straight into the sink: the precompiled static part of the template
+ * followed by the timestamp, without building an intermediate json string or byte array.
+ */
+
+final class HeartbeatRequestBody extends RequestBody {
+
+    private static final ByteString BODY_SUFFIX = ByteString.encodeUtf8("\"}");
+
+    private final ByteString bodyPrefix;
+    private final String timestamp;
+    private final long contentLength;
+
+    HeartbeatRequestBody(ByteString bodyPrefix, String timestamp) {
+        this.bodyPrefix = bodyPrefix;
+        this.timestamp = timestamp;
+        this.contentLength = bodyPrefix.size() + Utf8.size(timestamp) + BODY_SUFFIX.size();
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(bodyPrefix);
+        sink.writeUtf8(timestamp);
+        sink.write(BODY_SUFFIX);
+    }
+}
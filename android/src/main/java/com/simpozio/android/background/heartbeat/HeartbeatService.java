@@ -5,18 +5,26 @@ import android.content.*;
 
 import android.os.*;
 
+import com.simpozio.android.background.event.Event;
+import com.simpozio.android.background.event.EventBus;
+import com.simpozio.android.background.event.EventJournal;
 import com.simpozio.android.background.event.EventPublisher;
-import com.simpozio.android.background.http.AsyncHttpAgent;
+import com.simpozio.android.background.event.ThrottlingPublisher;
+import com.simpozio.android.background.scheduler.SchedulePolicy;
 
 import static com.simpozio.android.background.SimpozioBackgroundWorker.*;
 
 public final class HeartbeatService extends Service implements EventPublisher {
 
-    private final AsyncHttpAgent httpAgent = new HeartbeatHttpAgent(this);
+    private final HeartbeatHttpAgent httpAgent = new HeartbeatHttpAgent(new ThrottlingPublisher(this));
+
+    private volatile EventJournal journal;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        this.journal = EventJournal.get(getFilesDir());
+        this.httpAgent.queue = new HeartbeatQueue(getFilesDir());
         this.registerReceiver(createReceiver(), getHeartbeatIntentFilter());
     }
 
@@ -38,14 +46,28 @@ public final class HeartbeatService extends Service implements EventPublisher {
     }
 
     @Override
-    public void fireEvent(Bundle event) {
-        this.sendBroadcast(asFeedback(event));
+    public void fireEvent(Event event) {
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(event);
+        }
+        if (!EventBus.get().publish(event)) {
+            this.sendBroadcast(asFeedback(event.toBundle()));
+        }
+        event.recycle();
     }
 
     private void updateAgent(Intent intent) {
-        this.httpAgent.url.set(intent.getStringExtra(SIMPOZIO_URL_EXTRA));
-        this.httpAgent.headers.set(intent.getBundleExtra(HEADERS_EVENT_BUNDLE));
-        this.httpAgent.requestBody.set(intent.getBundleExtra(REQUEST_BODY_EVENT_BUNDLE));
+        this.httpAgent.update(
+                intent.getStringExtra(SIMPOZIO_URL_EXTRA),
+                intent.getBundleExtra(HEADERS_EVENT_BUNDLE),
+                intent.getBundleExtra(REQUEST_BODY_EVENT_BUNDLE));
+        this.httpAgent.schedulePolicy = SchedulePolicy.parse(intent.getStringExtra(SCHEDULE_EXTRA));
+        this.httpAgent.retryPolicy.configure(intent.getBundleExtra(RETRY_EXTRA));
+        this.httpAgent.pipelined = "async".equals(intent.getStringExtra(DISPATCH_EXTRA));
+        this.httpAgent.gzip = intent.getBooleanExtra(GZIP_EXTRA, false);
+        this.httpAgent.timestampHeader = intent.getStringExtra(TIMESTAMP_HEADER_EXTRA);
+        this.httpAgent.maxInFlight = intent.getIntExtra(MAX_IN_FLIGHT_EXTRA, this.httpAgent.maxInFlight);
     }
 
     private BroadcastReceiver createReceiver() {
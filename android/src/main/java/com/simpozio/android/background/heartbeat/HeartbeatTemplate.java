@@ -0,0 +1,135 @@
+package com.simpozio.android.background.heartbeat;
+
+import android.os.Bundle;
+
+import org.joda.time.Period;
+import org.joda.time.format.PeriodFormatter;
+import org.joda.time.format.PeriodFormatterBuilder;
+import org.json.JSONObject;
+
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.RequestBody;
+import okio.ByteString;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Immutable heartbeat request compiled once per metadata update: prebuilt headers, parsed
+ * period and the serialized static part of the body. Each tick only splices in the timestamp.
+ */
+
+public final class HeartbeatTemplate {
+
+    public static final long NO_PERIOD = -1L;
+
+    private static final PeriodFormatter PERIOD_FORMATTER = getPeriodFormatter();
+
+    private static final String TIMESTAMP_FIELD = "timestamp";
+
+    public final HttpUrl url;
+    public final Headers headers;
+    public final long period;
+
+    private final ByteString bodyPrefix;
+
+    private final IllegalStateException invalid;
+
+    private HeartbeatTemplate(HttpUrl url, Headers headers, long period, ByteString bodyPrefix, IllegalStateException invalid) {
+        this.url = url;
+        this.headers = headers;
+        this.period = period;
+        this.bodyPrefix = bodyPrefix;
+        this.invalid = invalid;
+    }
+
+    /**
+     * @return template, or invalid template which rethrows the compilation failure on every {@link #validate()}
+     */
+
+    public static HeartbeatTemplate compile(String url, Bundle headers, Bundle requestBody) {
+        try {
+            if (headers == null || requestBody == null) {
+                throw illegalState("data is null");
+            } else if (url == null) {
+                throw illegalState("url is null");
+            }
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            if (httpUrl == null) {
+                throw illegalState("url is invalid: " + url);
+            }
+            return new HeartbeatTemplate(httpUrl, compileHeaders(headers), compilePeriod(requestBody), compileBodyPrefix(requestBody), null);
+        } catch (IllegalStateException cause) {
+            return new HeartbeatTemplate(null, null, NO_PERIOD, null, cause);
+        } catch (RuntimeException cause) {
+            return new HeartbeatTemplate(null, null, NO_PERIOD, null, illegalState(cause.getMessage()));
+        }
+    }
+
+    public HeartbeatTemplate validate() {
+        if (invalid != null) {
+            throw invalid;
+        }
+        return this;
+    }
+
+    public RequestBody body(String timestamp) {
+        return new HeartbeatRequestBody(bodyPrefix, timestamp);
+    }
+
+    private static Headers compileHeaders(Bundle headers) {
+        Headers.Builder headersBuilder = new Headers.Builder();
+        for (String key : headers.keySet()) {
+            headersBuilder.set(key, headers.getString(key));
+        }
+        return headersBuilder.build();
+    }
+
+    private static long compilePeriod(Bundle requestBody) {
+
+        String next = requestBody.getString("next");
+
+        if (next != null) {
+            Period nextPeriod = PERIOD_FORMATTER.parsePeriod(next);
+            return DAYS.toMillis(nextPeriod.getDays()) +
+                    HOURS.toMillis(nextPeriod.getHours()) +
+                    MINUTES.toMillis(nextPeriod.getMinutes()) +
+                    SECONDS.toMillis(nextPeriod.getSeconds()) +
+                    MILLISECONDS.toMillis(nextPeriod.getMillis());
+        }
+        return NO_PERIOD;
+    }
+
+    private static ByteString compileBodyPrefix(Bundle requestBody) {
+        if (requestBody.containsKey("touchpoint") && requestBody.containsKey("state")) {
+            StringBuilder prefix = new StringBuilder("{");
+            for (String key : requestBody.keySet()) {
+                String value = requestBody.getString(key);
+                if (value != null && !TIMESTAMP_FIELD.equals(key)) {
+                    prefix.append(JSONObject.quote(key)).append(':').append(JSONObject.quote(value)).append(',');
+                }
+            }
+            return ByteString.encodeUtf8(prefix.append(JSONObject.quote(TIMESTAMP_FIELD)).append(":\"").toString());
+        } else {
+            throw illegalState("touchpoint and state are required fields");
+        }
+    }
+
+    private static PeriodFormatter getPeriodFormatter() {
+        return new PeriodFormatterBuilder()
+                .appendDays().appendSuffix("d")
+                .appendHours().appendSuffix("h")
+                .appendMinutes().appendSuffix("m")
+                .appendSeconds().appendSuffix("s")
+                .appendMillis().appendSuffix("ms")
+                .toFormatter();
+    }
+
+    private static IllegalStateException illegalState(String message) {
+        return new IllegalStateException(message);
+    }
+}
@@ -1,28 +1,60 @@
 package com.simpozio.android.background.http;
 
-import android.os.Bundle;
-
-import java.util.concurrent.atomic.AtomicReference;
+import android.os.SystemClock;
 
+import com.simpozio.android.background.event.Event;
 import com.simpozio.android.background.event.EventPublisher;
 import com.simpozio.android.background.event.Events;
+import com.simpozio.android.background.scheduler.SchedulePolicy;
+import com.simpozio.android.background.scheduler.ScheduledAgent;
+import com.simpozio.android.background.stats.LatencyStats;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.*;
 
-public abstract class AsyncHttpAgent extends Thread implements EventPublisher {
+public abstract class AsyncHttpAgent extends ScheduledAgent implements EventPublisher {
 
     public static final MediaType MEDIA_TYPE = MediaType.parse("application/json");
 
-    public final AtomicReference<Bundle> requestBody = new AtomicReference<>(null);
-    public final AtomicReference<Bundle> headers = new AtomicReference<>(null);
-    public final AtomicReference<String> url = new AtomicReference<>(null);
-
     public long next = 5000L;
 
-    private boolean failed = false;
+    public volatile SchedulePolicy schedulePolicy = SchedulePolicy.FIXED_DELAY;
+
+    public final RetryPolicy retryPolicy = new RetryPolicy();
+
+    public final LatencyStats roundTrips = new LatencyStats(256);
+
+    public volatile boolean pipelined = false;
+
+    public volatile boolean gzip = false;
+
+    public volatile int maxInFlight = 4;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Map<Long, DispatchResult> results = new HashMap<>();
+
+    private long dispatched = 0;
+
+    private long handled = 0;
+
+    private boolean stopped = false; // guarded by results
+
+    private volatile Request delivered;
+
+    private final ConcurrentLinkedQueue<Request> undelivered = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean failed = false;
 
     private long lastFailed = 0;
 
+    private volatile long retryAt = 0;
+
     private final EventPublisher eventPublisher;
 
     public AsyncHttpAgent(EventPublisher eventPublisher) {
@@ -31,96 +63,278 @@ public abstract class AsyncHttpAgent extends Thread implements EventPublisher {
 
     public abstract Request prepareRequest() throws Exception;
 
+    /**
+     * While backing off or while the circuit is open, every period still produces a heartbeat,
+     * which goes straight to {@link #onUndelivered(Request)}, so the undelivered history has no gaps.
+     */
+
     @Override
-    public void start() {
-        try {
-            super.start();
-        } catch (IllegalThreadStateException ignored) {
-            this.fireEvent(Events.heartbeatStartFailed(illegalState("unexpected state on start: " + getState())));
+    protected void tick() {
+        this.drainUndelivered();
+        long wait = Math.max(this.retryPolicy.remainingOpen(), this.retryAt - SystemClock.elapsedRealtime());
+        if (wait > 0) {
+            this.onSkipped();
+            this.scheduleNext(Math.min(this.next, wait));
+        } else if (this.pipelined) {
+            this.dispatch();
+        } else {
+            this.execute();
         }
     }
 
-    @Override
-    public void run() {
+    /**
+     * Blocking mode: one request per tick, the next tick waits for the response.
+     */
 
-        long startupPoint = started();
+    private void execute() {
+        boolean succeeded = false;
+        long delay = 0L;
+        Request request = null;
+        try {
+            request = CallTimings.tag(prepareRequest());
 
-        OkHttpClient httpClient = new OkHttpClient();
+            Response response = SharedHttpClient.get(this.gzip).newCall(request).execute();
 
-        while (!isInterrupted()) {
-            try {
-                Response response = httpClient.newCall(prepareRequest()).execute();
+            long roundTrip = CallTimings.roundTripMillis(response);
+            long doubleRequestRoundTrip = roundTrip * 2;
 
-                long doubleRequestRoundTrip = (response.receivedResponseAtMillis() - response.sentRequestAtMillis()) * 2;
+            this.roundTrips.record(roundTrip);
+            this.onResponse(response);
 
-                if (response.isSuccessful()) {
-                    this.onSuccess();
-                } else {
-                    this.onHeartbeatFailed(response.code(), response.message());
+            if (response.isSuccessful()) {
+                this.onSuccess();
+                succeeded = true;
+            } else {
+                this.onHeartbeatFailed(response.code(), response.message());
+                if (isRetriable(response.code())) {
+                    this.onUndelivered(request);
                 }
-                try {
-                    response.close();
-                } catch (Exception cause) {
-                    this.onException(cause);
-                }
-                if (doubleRequestRoundTrip < this.next) {
-                    Thread.sleep(this.next - doubleRequestRoundTrip);
-                }
-            } catch (InterruptedException ignored) {
-                this.interrupt();
+            }
+            try {
+                response.close();
+            } catch (Exception cause) {
+                this.onException(cause);
+            }
+            if (doubleRequestRoundTrip < this.next) {
+                delay = this.next - doubleRequestRoundTrip;
+            }
+        } catch (IOException cause) {
+            this.onHeartbeatFailed(cause);
+            this.onUndelivered(request);
+        } catch (Throwable cause) {
+            this.onHeartbeatFailed(cause);
+        }
+        if (succeeded) {
+            this.onDelivered(request);
+        }
+        if (!succeeded) {
+            this.scheduleNext(this.next); // the tick backs off until retryAt
+        } else if (this.schedulePolicy == SchedulePolicy.FIXED_DELAY) {
+            this.scheduleNext(delay);
+        } else {
+            this.scheduleAtRate(this.next, this.schedulePolicy);
+        }
+    }
+
+    /**
+     * Pipelined mode: requests are enqueued on schedule without waiting for responses,
+     * at most {@link #maxInFlight} at a time, results are handled in dispatch order.
+     */
+
+    private void dispatch() {
+        Request delivered = this.delivered;
+        if (this.inFlight.get() >= Math.max(1, this.maxInFlight)) {
+            this.skipped();
+        } else {
+            try {
+                final Request request = CallTimings.tag(prepareRequest());
+                final long sequence = this.dispatched++;
+                this.inFlight.incrementAndGet();
+                SharedHttpClient.get(this.gzip).newCall(request).enqueue(new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException cause) {
+                        AsyncHttpAgent.this.complete(sequence, new DispatchResult(request, cause));
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        AsyncHttpAgent.this.roundTrips.record(CallTimings.roundTripMillis(response));
+                        AsyncHttpAgent.this.onResponse(response);
+                        DispatchResult result = new DispatchResult(request, response.code(), response.message());
+                        try {
+                            response.close();
+                        } catch (Exception cause) {
+                            result.closeFailure = cause;
+                        }
+                        AsyncHttpAgent.this.complete(sequence, result);
+                    }
+                });
             } catch (Throwable cause) {
-                this.onHeartbeatFailed(cause);
+                synchronized (this.results) {
+                    this.onHeartbeatFailed(cause);
+                }
             }
         }
-        this.finish(System.currentTimeMillis() - startupPoint);
+        if (delivered != null) {
+            this.delivered = null;
+            this.onDelivered(delivered);
+        }
+        if (this.failed) {
+            this.scheduleNext(this.next); // the tick backs off until retryAt
+        } else if (this.schedulePolicy == SchedulePolicy.FIXED_DELAY) {
+            this.scheduleNext(this.next);
+        } else {
+            this.scheduleAtRate(this.next, this.schedulePolicy);
+        }
     }
 
-    @Override
-    public void interrupt() {
-        if (isInterrupted()) {
-            this.fireEvent(Events.heartbeatStopFailed(illegalState("already interrupted")));
-        } else if (!isAlive()) {
-            this.fireEvent(Events.heartbeatStopFailed(illegalState("httpAgent died")));
+    private void complete(long sequence, DispatchResult result) {
+        synchronized (this.results) {
+            this.results.put(sequence, result);
+            DispatchResult next;
+            while ((next = this.results.remove(this.handled)) != null) {
+                this.handled += 1;
+                this.handle(next);
+            }
+        }
+        this.inFlight.decrementAndGet();
+    }
+
+    private void handle(DispatchResult result) {
+        if (this.stopped) {
+            // completed after stop: no more events, and no tick left to hand the request over to
+            if (result.cause != null || isRetriable(result.code)) {
+                this.onUndelivered(result.request);
+            }
+            return;
+        }
+        if (result.cause != null) {
+            this.onHeartbeatFailed(result.cause);
+            this.undelivered.offer(result.request); // drained on the agent thread
+        } else if (result.code >= 200 && result.code < 300) {
+            this.onSuccess();
+            this.delivered = result.request; // flushed on the agent thread
         } else {
-            super.interrupt();
+            this.onHeartbeatFailed(result.code, result.message);
+            if (isRetriable(result.code)) {
+                this.undelivered.offer(result.request);
+            }
+        }
+        if (result.closeFailure != null) {
+            this.onException(result.closeFailure);
         }
     }
 
-    @Override
-    public void fireEvent(Bundle event) {
-        this.eventPublisher.fireEvent(event);
+    /**
+     * Called with every response before it is closed, on the agent thread or, in pipelined mode, on the http dispatcher thread.
+     */
+
+    protected void onResponse(Response response) {
     }
 
-    private long started() {
+    /**
+     * Called on the agent thread with a request which failed for a reason worth retrying later,
+     * or which was not sent at all because of backoff or an open circuit. Pipelined results are handed
+     * over to the agent thread on its next tick, those pending at stop are passed on the stopping thread,
+     * and those of calls still in flight at stop on the http dispatcher thread when the calls complete.
+     */
+
+    protected void onUndelivered(Request request) {
+    }
+
+    /**
+     * Called on the agent thread after a request has been delivered.
+     */
+
+    protected void onDelivered(Request request) {
+    }
+
+    @Override
+    protected void onStarted() {
+        synchronized (this.results) {
+            this.stopped = false;
+        }
         this.fireEvent(Events.heartbeatStarted());
-        return System.currentTimeMillis();
     }
 
-    private void finish(long uptime) {
-        this.fireEvent(Events.heartbeatStopped(uptime));
+    @Override
+    protected void onStartFailed(IllegalStateException cause) {
+        this.fireEvent(Events.heartbeatStartFailed(cause));
+    }
+
+    @Override
+    protected void onStopped(long uptime) {
+        synchronized (this.results) {
+            this.stopped = true;
+        }
+        this.drainUndelivered();
+        this.fireEvent(Events.heartbeatStopped(uptime, scheduleLag(), roundTrips));
+    }
+
+    @Override
+    protected void onStopFailed(IllegalStateException cause) {
+        this.fireEvent(Events.heartbeatStopFailed(cause));
+    }
+
+    @Override
+    protected void onTickFailed(Throwable cause) {
+        this.fireEvent(Events.heartbeatException(cause));
+    }
+
+    @Override
+    public void fireEvent(Event event) {
+        this.eventPublisher.fireEvent(event);
     }
 
     private void onSuccess() {
         if (this.failed) {
-            this.fireEvent(Events.heartbeatResume(System.currentTimeMillis() - lastFailed));
+            this.fireEvent(Events.heartbeatResume(SystemClock.elapsedRealtime() - lastFailed, retryPolicy));
             this.failed = false;
         }
+        this.retryPolicy.onSuccess();
+        this.retryAt = 0;
+    }
+
+    private void drainUndelivered() {
+        Request request;
+        while ((request = this.undelivered.poll()) != null) {
+            this.onUndelivered(request);
+        }
+    }
+
+    private void onSkipped() {
+        try {
+            this.onUndelivered(this.prepareRequest());
+        } catch (Exception cause) {
+            this.onException(cause);
+        }
     }
 
     private void onHeartbeatFailed(int code, String message) {
-        if (!failed) {
-            this.fireEvent(Events.heartbeatFailed(code, message));
-            this.failed = true;
+        if (this.onFailure()) {
+            this.fireEvent(Events.heartbeatFailed(code, message, retryPolicy));
         }
-        this.lastFailed = System.currentTimeMillis();
     }
 
     private void onHeartbeatFailed(Throwable cause) {
-        if (!failed) {
-            this.fireEvent(Events.heartbeatFailed(cause));
-            this.failed = true;
+        if (this.onFailure()) {
+            this.fireEvent(Events.heartbeatFailed(cause, retryPolicy));
         }
-        this.lastFailed = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if failure must be reported: first failure in a row, or the circuit has just opened
+     */
+
+    private boolean onFailure() {
+        boolean wasOpen = this.retryPolicy.circuit() == RetryPolicy.Circuit.OPEN;
+        this.retryPolicy.onFailure();
+        // never retry faster than the regular period
+        this.retryAt = SystemClock.elapsedRealtime() + Math.max(this.next, this.retryPolicy.backoff());
+        boolean report = !failed || (!wasOpen && this.retryPolicy.circuit() == RetryPolicy.Circuit.OPEN);
+        this.failed = true;
+        this.lastFailed = SystemClock.elapsedRealtime();
+        return report;
     }
 
     private void onException(Exception cause) {
@@ -128,11 +342,35 @@ public abstract class AsyncHttpAgent extends Thread implements EventPublisher {
             this.fireEvent(Events.heartbeatException(cause));
             this.failed = true;
         }
-        this.lastFailed = System.currentTimeMillis();
+        this.lastFailed = SystemClock.elapsedRealtime();
+    }
+
+    private static final class DispatchResult {
+
+        final Request request;
+        final int code;
+        final String message;
+        final IOException cause;
+
+        Exception closeFailure;
+
+        DispatchResult(Request request, int code, String message) {
+            this.request = request;
+            this.code = code;
+            this.message = message;
+            this.cause = null;
+        }
+
+        DispatchResult(Request request, IOException cause) {
+            this.request = request;
+            this.code = -1;
+            this.message = null;
+            this.cause = cause;
+        }
     }
 
-    protected static IllegalStateException illegalState(String message) {
-        return new IllegalStateException(message);
+    protected static boolean isRetriable(int code) {
+        return code >= 500 || code == 408 || code == 429;
     }
 
     protected static IllegalArgumentException illegalArgument(String message) {
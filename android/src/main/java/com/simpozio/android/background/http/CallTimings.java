@@ -0,0 +1,227 @@
+package com.simpozio.android.background.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Phase timestamps of one call on the monotonic {@code System.nanoTime()} clock, recorded by
+ * {@link #FACTORY} for requests tagged with an instance (see {@link #tag(Request)}).
+ *
+ * Every timestamp is 0 if the phase did not happen, e.g. dns and connect on a pooled connection.
+ * With redirects or retries the request and response phases are those of the last exchange.
+ */
+
+public final class CallTimings {
+
+    public static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            Object tag = call.request().tag();
+            return tag instanceof CallTimings ? new Listener((CallTimings) tag) : EventListener.NONE;
+        }
+    };
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * {@code System.currentTimeMillis()} at call start, anchors nano timestamps to wall clock
+     */
+    public volatile long startMillis;
+
+    public volatile long start;
+    public volatile long dnsStart;
+    public volatile long dnsEnd;
+    public volatile long connectStart;
+    public volatile long secureConnectStart;
+    public volatile long secureConnectEnd;
+    public volatile long connectEnd;
+    public volatile long requestStart;
+    public volatile long requestEnd;
+    public volatile long firstByte;
+    public volatile long end;
+
+    /**
+     * @return copy of the request tagged with new timings
+     */
+
+    public static Request tag(Request request) {
+        return request.newBuilder().tag(new CallTimings()).build();
+    }
+
+    /**
+     * @return timings of the call which produced the response, or null if its request was not tagged
+     */
+
+    public static CallTimings of(Response response) {
+        Object tag = response.request().tag();
+        return tag instanceof CallTimings ? (CallTimings) tag : null;
+    }
+
+    /**
+     * @return round trip from request sent to first response byte, falls back to response wall clock millis
+     */
+
+    public static long roundTripMillis(Response response) {
+        CallTimings timings = of(response);
+        if (timings == null || !timings.isComplete()) {
+            return response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+        }
+        return toMillis(timings.roundTrip());
+    }
+
+    /**
+     * @return wall clock millis when the request was sent, derived from the monotonic timestamps
+     */
+
+    public static long sentAtMillis(Response response) {
+        CallTimings timings = of(response);
+        if (timings == null || !timings.isComplete()) {
+            return response.sentRequestAtMillis();
+        }
+        return timings.startMillis + toMillis(timings.requestEnd - timings.start);
+    }
+
+    /**
+     * @return wall clock millis when the first response byte arrived, derived from the monotonic timestamps
+     */
+
+    public static long receivedAtMillis(Response response) {
+        CallTimings timings = of(response);
+        if (timings == null || !timings.isComplete()) {
+            return response.receivedResponseAtMillis();
+        }
+        return timings.startMillis + toMillis(timings.firstByte - timings.start);
+    }
+
+    public boolean isComplete() {
+        return start != 0 && requestEnd != 0 && firstByte != 0;
+    }
+
+    public long dns() {
+        return elapsed(dnsStart, dnsEnd);
+    }
+
+    public long connect() {
+        return elapsed(connectStart, connectEnd);
+    }
+
+    public long tls() {
+        return elapsed(secureConnectStart, secureConnectEnd);
+    }
+
+    /**
+     * @return nanos from request sent to first response byte, -1 if the response did not arrive
+     */
+
+    public long roundTrip() {
+        return requestEnd != 0 && firstByte != 0 ? firstByte - requestEnd : -1L;
+    }
+
+    public long total() {
+        return elapsed(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return "dns " + toMillis(dns())
+                + " connect " + toMillis(connect())
+                + " tls " + toMillis(tls())
+                + " round trip " + toMillis(roundTrip())
+                + " total " + toMillis(total()) + " ms";
+    }
+
+    private static long elapsed(long from, long to) {
+        return from != 0 && to != 0 ? to - from : 0L;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos < 0 ? nanos : (nanos + NANOS_PER_MILLI / 2) / NANOS_PER_MILLI;
+    }
+
+    private static final class Listener extends EventListener {
+
+        private final CallTimings timings;
+
+        Listener(CallTimings timings) {
+            this.timings = timings;
+        }
+
+        @Override
+        public void callStart(Call call) {
+            this.timings.startMillis = System.currentTimeMillis();
+            this.timings.start = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            this.timings.dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            this.timings.dnsEnd = System.nanoTime();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            this.timings.connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            this.timings.secureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            this.timings.secureConnectEnd = System.nanoTime();
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            this.timings.connectEnd = System.nanoTime();
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            this.timings.requestStart = System.nanoTime();
+            this.timings.requestEnd = 0;
+            this.timings.firstByte = 0;
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            this.timings.requestEnd = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            this.timings.requestEnd = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            this.timings.firstByte = System.nanoTime();
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            this.timings.end = System.nanoTime();
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            this.timings.end = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.simpozio.android.background.http;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzips request bodies of at least {@code minBytes} and marks them with {@code Content-Encoding: gzip}.
+ * The compressed body is buffered, so it keeps a known content length and survives retries.
+ */
+
+public final class GzipRequestInterceptor implements Interceptor {
+
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private final long minBytes;
+
+    public GzipRequestInterceptor(long minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        if (body == null || request.header(CONTENT_ENCODING) != null) {
+            return chain.proceed(request);
+        }
+        long contentLength = body.contentLength();
+        if (contentLength != -1 && contentLength < minBytes) {
+            return chain.proceed(request);
+        }
+        return chain.proceed(request.newBuilder()
+                .header(CONTENT_ENCODING, "gzip")
+                .method(request.method(), gzip(body))
+                .build());
+    }
+
+    private static RequestBody gzip(RequestBody body) throws IOException {
+        Buffer compressed = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(compressed));
+        body.writeTo(sink);
+        sink.close();
+        return RequestBody.create(body.contentType(), compressed.readByteString());
+    }
+}
@@ -0,0 +1,18 @@
+package com.simpozio.android.background.http;
+
+public final class HttpClientConfig {
+
+    public int maxIdleConnections = 5;
+    public long keepAliveMillis = 5 * 60 * 1000L; // 5 min
+    public long connectTimeoutMillis = 10000L;
+    public long readTimeoutMillis = 10000L;
+    public long writeTimeoutMillis = 10000L;
+    public boolean http2 = true;
+    public boolean retryOnConnectionFailure = true;
+    public long gzipMinBytes = 1024L;
+    public long pingIntervalMillis = 0L; // HTTP/2 PING frames, 0 disables
+
+    public static HttpClientConfig defaults() {
+        return new HttpClientConfig();
+    }
+}
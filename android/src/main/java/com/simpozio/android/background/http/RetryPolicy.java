@@ -0,0 +1,108 @@
+package com.simpozio.android.background.http;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter and a circuit breaker. After {@code failureThreshold}
+ * consecutive failures the circuit opens for {@code openDuration}, then a single
+ * half-open probe decides whether it closes again or stays open.
+ */
+
+public final class RetryPolicy {
+
+    public enum Circuit {
+        CLOSED, OPEN, HALF_OPEN;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private long baseDelayMillis = 1000L;
+    private long maxDelayMillis = 60000L;
+    private int failureThreshold = 5;
+    private long openDurationMillis = 60000L;
+
+    private final Random random = new Random();
+
+    private Circuit circuit = Circuit.CLOSED;
+
+    private int attempt = 0;
+
+    private long backoff = 0;
+
+    private long openedAt = 0;
+
+    /**
+     * @param config is bundle {"baseDelay":long, "maxDelay":long, "failureThreshold":int, "openDuration":long}, all keys are optional
+     */
+
+    public synchronized void configure(Bundle config) {
+        if (config == null) {
+            return;
+        }
+        this.baseDelayMillis = config.getLong("baseDelay", baseDelayMillis);
+        this.maxDelayMillis = config.getLong("maxDelay", maxDelayMillis);
+        this.failureThreshold = config.getInt("failureThreshold", failureThreshold);
+        this.openDurationMillis = config.getLong("openDuration", openDurationMillis);
+    }
+
+    /**
+     * @return delay before the next attempt, millis
+     */
+
+    public synchronized long onFailure() {
+        this.attempt += 1;
+        if (circuit == Circuit.HALF_OPEN || (circuit == Circuit.CLOSED && attempt >= failureThreshold)) {
+            this.circuit = Circuit.OPEN;
+            this.openedAt = SystemClock.elapsedRealtime();
+            this.backoff = openDurationMillis;
+        } else {
+            long ceiling = baseDelayMillis << Math.min(attempt, 30);
+            if (ceiling <= 0 || ceiling > maxDelayMillis) {
+                ceiling = maxDelayMillis;
+            }
+            this.backoff = (long) (random.nextDouble() * ceiling);
+        }
+        return backoff;
+    }
+
+    public synchronized void onSuccess() {
+        this.attempt = 0;
+        this.backoff = 0;
+        this.circuit = Circuit.CLOSED;
+    }
+
+    /**
+     * @return 0 when a request may be sent now (moving an expired open circuit to half-open),
+     * otherwise millis left until the half-open probe
+     */
+
+    public synchronized long remainingOpen() {
+        if (circuit != Circuit.OPEN) {
+            return 0;
+        }
+        long remaining = openDurationMillis - (SystemClock.elapsedRealtime() - openedAt);
+        if (remaining <= 0) {
+            this.circuit = Circuit.HALF_OPEN;
+            return 0;
+        }
+        return remaining;
+    }
+
+    public synchronized Circuit circuit() {
+        return circuit;
+    }
+
+    public synchronized int attempt() {
+        return attempt;
+    }
+
+    public synchronized long backoff() {
+        return backoff;
+    }
+}
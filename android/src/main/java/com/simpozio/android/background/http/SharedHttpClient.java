@@ -0,0 +1,96 @@
+package com.simpozio.android.background.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Process-wide OkHttpClient shared by every http agent, so heartbeat, ping and trace
+ * reuse one connection pool and dispatcher instead of handshaking per agent.
+ */
+
+public final class SharedHttpClient {
+
+    private static volatile OkHttpClient httpClient;
+
+    private static volatile OkHttpClient gzipHttpClient;
+
+    private static volatile HttpClientConfig httpClientConfig = HttpClientConfig.defaults();
+
+    private SharedHttpClient() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static OkHttpClient get() {
+        OkHttpClient current = httpClient;
+        if (current == null) {
+            synchronized (SharedHttpClient.class) {
+                current = httpClient;
+                if (current == null) {
+                    httpClient = current = create(httpClientConfig);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return shared client, or its derivative which gzips request bodies; both use the same pool and dispatcher
+     */
+
+    public static OkHttpClient get(boolean gzip) {
+        if (!gzip) {
+            return get();
+        }
+        OkHttpClient current = gzipHttpClient;
+        if (current == null) {
+            synchronized (SharedHttpClient.class) {
+                current = gzipHttpClient;
+                if (current == null) {
+                    gzipHttpClient = current = get().newBuilder()
+                            .addInterceptor(new GzipRequestInterceptor(httpClientConfig.gzipMinBytes))
+                            .build();
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Replaces the shared client. Calls already in flight finish on the previous client,
+     * its idle connections are evicted.
+     */
+
+    public static void configure(HttpClientConfig config) {
+        OkHttpClient previous;
+        synchronized (SharedHttpClient.class) {
+            previous = httpClient;
+            httpClientConfig = config;
+            httpClient = create(config);
+            gzipHttpClient = null;
+        }
+        if (previous != null) {
+            previous.connectionPool().evictAll();
+        }
+    }
+
+    private static OkHttpClient create(HttpClientConfig config) {
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(config.maxIdleConnections, config.keepAliveMillis, MILLISECONDS))
+                .connectTimeout(config.connectTimeoutMillis, MILLISECONDS)
+                .readTimeout(config.readTimeoutMillis, MILLISECONDS)
+                .writeTimeout(config.writeTimeoutMillis, MILLISECONDS)
+                .retryOnConnectionFailure(config.retryOnConnectionFailure)
+                .eventListenerFactory(CallTimings.FACTORY)
+                .pingInterval(config.pingIntervalMillis, MILLISECONDS)
+                .protocols(config.http2
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1))
+                .build();
+    }
+}
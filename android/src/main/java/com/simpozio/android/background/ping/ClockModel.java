@@ -0,0 +1,158 @@
+package com.simpozio.android.background.ping;
+
+/**
+ * Linear model of server time against {@code SystemClock.elapsedRealtime()}:
+ * {@code server = elapsed + offset + skew * (elapsed - t)}, fitted by weighted least squares
+ * over the last offset measurements (weight 1 / error^2).
+ *
+ * Working on the monotonic clock keeps wall clock adjustments out of the fit, so the slope is
+ * the pure oscillator skew, and server time can be predicted long after the last sync.
+ */
+
+public final class ClockModel {
+
+    private static final double MIN_ERROR = 1.0D;
+
+    private final long[] elapsed;
+    private final double[] offset;
+    private final double[] error;
+
+    private int next = 0;
+    private int size = 0;
+
+    private double meanElapsed = 0.0D;
+    private double meanOffset = 0.0D;
+    private double skew = 0.0D;
+    private double totalWeight = 0.0D;
+    private double spread = 0.0D;
+
+    public ClockModel(int capacity) {
+        int length = Math.max(2, capacity);
+        this.elapsed = new long[length];
+        this.offset = new double[length];
+        this.error = new double[length];
+    }
+
+    /**
+     * @param elapsedMillis {@code SystemClock.elapsedRealtime()} of the measurement
+     * @param offsetMillis server time minus {@code elapsedMillis}
+     * @param errorMillis half width of the interval the offset is known to lie in
+     */
+
+    public synchronized void add(long elapsedMillis, double offsetMillis, double errorMillis) {
+        this.elapsed[next] = elapsedMillis;
+        this.offset[next] = offsetMillis;
+        this.error[next] = Math.max(MIN_ERROR, errorMillis);
+        this.next = (next + 1) % elapsed.length;
+        if (size < elapsed.length) {
+            this.size += 1;
+        }
+        this.fit();
+    }
+
+    public synchronized void reset() {
+        this.next = 0;
+        this.size = 0;
+        this.fit();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return predicted server time, millis since epoch
+     */
+
+    public synchronized long serverTime(long elapsedMillis) {
+        return elapsedMillis + Math.round(offsetAt(elapsedMillis));
+    }
+
+    public synchronized double offsetAt(long elapsedMillis) {
+        return meanOffset + skew * (elapsedMillis - meanElapsed);
+    }
+
+    /**
+     * @return standard error of the predicted offset, millis
+     */
+
+    public synchronized double uncertainty(long elapsedMillis) {
+        if (size == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double distance = elapsedMillis - meanElapsed;
+        double variance = 1.0D / totalWeight;
+        if (spread > 0.0D) {
+            variance += distance * distance / spread;
+        }
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * @return copy of the model parameters, taken at {@code elapsedMillis}
+     */
+
+    public synchronized ClockSync.Snapshot snapshot(long elapsedMillis) {
+        return new ClockSync.Snapshot(elapsedMillis, offsetAt(elapsedMillis), skew, meanElapsed, 1.0D / totalWeight, spread);
+    }
+
+    /**
+     * @return local clock skew against the server, parts per million (positive when the local clock runs slow)
+     */
+
+    public synchronized double skewPpm() {
+        return skew * 1e6D;
+    }
+
+    /**
+     * @return millis after {@code elapsedMillis} until the prediction uncertainty grows beyond {@code accuracy},
+     * 0 if it already has, or {@link Long#MAX_VALUE} if the skew is not constrained by two measurements yet
+     */
+
+    public synchronized long horizon(long elapsedMillis, double accuracy) {
+        if (size < 2 || spread <= 0.0D) {
+            return Long.MAX_VALUE;
+        }
+        double budget = accuracy * accuracy - 1.0D / totalWeight;
+        if (budget <= 0.0D) {
+            return 0;
+        }
+        double reach = meanElapsed + Math.sqrt(budget * spread);
+        return Math.max(0L, (long) (reach - elapsedMillis));
+    }
+
+    private void fit() {
+        this.totalWeight = 0.0D;
+        this.meanElapsed = 0.0D;
+        this.meanOffset = 0.0D;
+        this.skew = 0.0D;
+        this.spread = 0.0D;
+        if (size == 0) {
+            return;
+        }
+        long base = elapsed[0];
+        for (int i = 0; i < size; i += 1) {
+            double weight = 1.0D / (error[i] * error[i]);
+            this.totalWeight += weight;
+            this.meanElapsed += weight * (elapsed[i] - base);
+            this.meanOffset += weight * offset[i];
+        }
+        this.meanElapsed /= totalWeight;
+        this.meanOffset /= totalWeight;
+        double covariance = 0.0D;
+        for (int i = 0; i < size; i += 1) {
+            double weight = 1.0D / (error[i] * error[i]);
+            double distance = elapsed[i] - base - meanElapsed;
+            this.spread += weight * distance * distance;
+            covariance += weight * distance * (offset[i] - meanOffset);
+        }
+        if (spread > 0.0D) {
+            this.skew = covariance / spread;
+        }
+        this.meanElapsed += base;
+    }
+}
@@ -0,0 +1,124 @@
+package com.simpozio.android.background.ping;
+
+/**
+ * NTP-style estimator of the offset between server and local clocks (server - local, millis).
+ *
+ * A sample {@code (t0, ts, t1)} says the server read {@code ts} (with {@code resolution} millis of
+ * truncation) somewhere between local {@code t0} and {@code t1}, so the offset lies within
+ * {@code [ts - t1, ts + resolution - t0]}. Intervals of all samples are intersected; if they
+ * do not intersect (clock step, broken sample), the minimum round trip sample is used alone.
+ */
+
+public final class ClockOffsetEstimator {
+
+    private final long[] sent;
+    private final long[] server;
+    private final long[] received;
+    private final long[] resolution;
+
+    private int size = 0;
+
+    public ClockOffsetEstimator(int capacity) {
+        int length = Math.max(1, capacity);
+        this.sent = new long[length];
+        this.server = new long[length];
+        this.received = new long[length];
+        this.resolution = new long[length];
+    }
+
+    /**
+     * @param t0 local millis when the request was sent
+     * @param ts server millis read while handling the request
+     * @param resolution millis of server timestamp truncation, 1 for millisecond timestamps
+     * @param t1 local millis when the response was received
+     */
+
+    public void add(long t0, long ts, long resolution, long t1) {
+        if (t1 < t0) {
+            return;
+        }
+        int index = size < sent.length ? size++ : worstRoundTrip(t1 - t0);
+        if (index < 0) {
+            return;
+        }
+        this.sent[index] = t0;
+        this.server[index] = ts;
+        this.received[index] = t1;
+        this.resolution[index] = Math.max(1L, resolution);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * @return offset estimate, or null if there are no samples
+     */
+
+    public Estimate estimate() {
+        if (size == 0) {
+            return null;
+        }
+        long lower = Long.MIN_VALUE;
+        long upper = Long.MAX_VALUE;
+        int best = 0;
+        for (int i = 0; i < size; i += 1) {
+            lower = Math.max(lower, server[i] - received[i]);
+            upper = Math.min(upper, server[i] + resolution[i] - sent[i]);
+            if (roundTrip(i) < roundTrip(best)) {
+                best = i;
+            }
+        }
+        if (lower > upper) {
+            lower = server[best] - received[best];
+            upper = server[best] + resolution[best] - sent[best];
+        }
+        return new Estimate(lower + (upper - lower) / 2, (upper - lower + 1) / 2, roundTrip(best), size);
+    }
+
+    private long roundTrip(int index) {
+        return received[index] - sent[index];
+    }
+
+    /**
+     * @return index of the sample to replace when full, or -1 if the new one is not better than any
+     */
+
+    private int worstRoundTrip(long roundTrip) {
+        int worst = 0;
+        for (int i = 1; i < size; i += 1) {
+            if (roundTrip(i) > roundTrip(worst)) {
+                worst = i;
+            }
+        }
+        return roundTrip < roundTrip(worst) ? worst : -1;
+    }
+
+    public static final class Estimate {
+
+        /**
+         * server - local, millis
+         */
+        public final long offset;
+
+        /**
+         * half width of the interval the offset is known to lie in, millis
+         */
+        public final long error;
+
+        public final long minRoundTrip;
+
+        public final int samples;
+
+        Estimate(long offset, long error, long minRoundTrip, int samples) {
+            this.offset = offset;
+            this.error = error;
+            this.minRoundTrip = minRoundTrip;
+            this.samples = samples;
+        }
+    }
+}
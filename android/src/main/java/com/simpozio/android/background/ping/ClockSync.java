@@ -0,0 +1,145 @@
+package com.simpozio.android.background.ping;
+
+import android.os.SystemClock;
+
+/**
+ * Process-wide clock synchronization state: the drift model fed by ping series, and the passive
+ * samples taken from heartbeat responses, which let the ping agent skip dedicated series.
+ */
+
+public final class ClockSync {
+
+    private static final int MODEL_CAPACITY = 16;
+    private static final int PASSIVE_CAPACITY = 32;
+    private static final long PASSIVE_WINDOW_MILLIS = 10 * 60 * 1000L; // 10 min, bounds drift inside one window
+
+    private static final ClockModel MODEL = new ClockModel(MODEL_CAPACITY);
+
+    private static final ClockOffsetEstimator PASSIVE = new ClockOffsetEstimator(PASSIVE_CAPACITY);
+
+    private static long passiveStart = 0;
+
+    private static volatile Snapshot snapshot = null;
+
+    private ClockSync() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static ClockModel model() {
+        return MODEL;
+    }
+
+    /**
+     * Publishes current model parameters for lock-free readers, called after every model update.
+     */
+
+    public static void publish(ClockModel model, long elapsedMillis) {
+        snapshot = model.isEmpty() ? null : model.snapshot(elapsedMillis);
+    }
+
+    /**
+     * @return last published model parameters, or null if the clock was not synchronized yet
+     */
+
+    public static Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Records timing of a request which was not sent for clock sync, see {@link ClockOffsetEstimator#add(long, long, long, long)}.
+     */
+
+    public static void passiveSample(long t0, long ts, long resolution, long t1) {
+        long elapsed = SystemClock.elapsedRealtime();
+        synchronized (PASSIVE) {
+            if (PASSIVE.size() == 0 || elapsed - passiveStart > PASSIVE_WINDOW_MILLIS) {
+                PASSIVE.clear();
+                passiveStart = elapsed;
+            }
+            PASSIVE.add(t0, ts, resolution, t1);
+        }
+    }
+
+    /**
+     * @return estimate from passive samples and starts a new window, or null if there are fewer than
+     * {@code minSamples} samples or the estimate is not within {@code accuracy}
+     */
+
+    public static ClockOffsetEstimator.Estimate takePassive(long accuracy, int minSamples) {
+        synchronized (PASSIVE) {
+            if (PASSIVE.size() < minSamples) {
+                return null;
+            }
+            ClockOffsetEstimator.Estimate estimate = PASSIVE.estimate();
+            if (estimate == null || estimate.error > accuracy) {
+                return null;
+            }
+            PASSIVE.clear();
+            return estimate;
+        }
+    }
+
+    /**
+     * Immutable copy of the model at the moment it was published, so reading server time
+     * takes neither the model lock nor an event round trip.
+     */
+
+    public static final class Snapshot {
+
+        /**
+         * {@code SystemClock.elapsedRealtime()} the parameters are taken at
+         */
+        public final long elapsed;
+
+        /**
+         * server time minus {@code elapsed}, millis
+         */
+        public final double offset;
+
+        public final double skew;
+
+        private final double meanElapsed;
+
+        private final double variance;
+
+        private final double spread;
+
+        Snapshot(long elapsed, double offset, double skew, double meanElapsed, double variance, double spread) {
+            this.elapsed = elapsed;
+            this.offset = offset;
+            this.skew = skew;
+            this.meanElapsed = meanElapsed;
+            this.variance = variance;
+            this.spread = spread;
+        }
+
+        /**
+         * @return predicted server time, millis since epoch
+         */
+
+        public double serverTime(long elapsedMillis) {
+            return elapsedMillis + offset + skew * (elapsedMillis - elapsed);
+        }
+
+        /**
+         * @return standard error of the predicted offset at {@code elapsedMillis}, see {@link ClockModel#uncertainty(long)}
+         */
+
+        public double uncertainty(long elapsedMillis) {
+            double distance = elapsedMillis - meanElapsed;
+            double variance = this.variance;
+            if (spread > 0.0D) {
+                variance += distance * distance / spread;
+            }
+            return Math.sqrt(variance);
+        }
+
+        /**
+         * @return server time minus {@code System.currentTimeMillis()}, millis
+         */
+
+        public double clockOffset(long elapsedMillis, long currentTimeMillis) {
+            return serverTime(elapsedMillis) - currentTimeMillis;
+        }
+    }
+}
@@ -1,34 +1,84 @@
 package com.simpozio.android.background.ping;
 
-import android.os.Bundle;
+import android.os.SystemClock;
 
 import com.simpozio.android.background.ServiceURL;
+import com.simpozio.android.background.event.DebugLog;
+import com.simpozio.android.background.event.Event;
 import com.simpozio.android.background.event.EventPublisher;
 import com.simpozio.android.background.event.Events;
+import com.simpozio.android.background.http.CallTimings;
+import com.simpozio.android.background.http.RetryPolicy;
+import com.simpozio.android.background.http.SharedHttpClient;
+import com.simpozio.android.background.scheduler.BackgroundScheduler;
+import com.simpozio.android.background.scheduler.ScheduledAgent;
+import com.simpozio.android.background.stats.LatencyStats;
 
 import org.joda.time.DateTime;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.List;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
-import okhttp3.OkHttpClient;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Request;
 import okhttp3.Response;
 
-public class PingHttpAgent extends Thread implements EventPublisher, ServiceURL {
+public class PingHttpAgent extends ScheduledAgent implements EventPublisher, ServiceURL {
 
-    public boolean debug;
+    public volatile boolean debug;
+    public volatile boolean debugEvents;
     public final AtomicLong pingDelay = new AtomicLong();
     public final AtomicInteger pingCount = new AtomicInteger();
     public final AtomicLong pingSeriesDelay = new AtomicLong();
     public final AtomicReference<String> pingUrl = new AtomicReference<>();
+    public final RetryPolicy retryPolicy = new RetryPolicy();
+    public final LatencyStats roundTrips = new LatencyStats(64);
+    public final ClockModel clockModel = ClockSync.model();
+    public volatile boolean passive;
+
+    public volatile boolean adaptive;
+    public final AtomicLong accuracy = new AtomicLong();
+    public final AtomicLong minSeriesDelay = new AtomicLong();
+    public final AtomicLong maxSeriesDelay = new AtomicLong();
+
+    public volatile boolean burst;
+    public final AtomicLong burstStagger = new AtomicLong();
+
+    public volatile boolean rttOnly;
+
+    private static final int MIN_ADAPTIVE_SAMPLES = 3;
+    private static final int MIN_MODEL_MEASUREMENTS = 3;
+    private static final int MIN_PASSIVE_SAMPLES = 5;
+    private static final long BURST_TIMEOUT_MILLIS = 30000L;
+    private static final long MIN_RTT_MARGIN_MILLIS = 2L;
+    private static final int MAX_TIMESTAMP_RETRIES = 3;
 
     private final EventPublisher eventPublisher;
 
+    private long adaptiveSeriesDelay = 0;
+
+    private Request pingRequest;
+
+    private Request rttRequest;
+
+    private ClockOffsetEstimator estimator;
+
+    private volatile Burst pendingBurst;
+
+    private int probe = 0;
+
+    private long minHeadRoundTrip;
+
+    private int headSamples;
+
+    private int timestampRetries;
+
     private boolean failed = false;
 
     private long lastFailed = 0;
@@ -38,164 +88,420 @@ public class PingHttpAgent extends Thread implements EventPublisher, ServiceURL
     }
 
     @Override
-    public void start() {
+    protected void tick() {
+        Burst burst = this.pendingBurst;
+        if (burst != null) {
+            this.pendingBurst = null;
+            burst.timeout.cancel(false);
+            if (!this.collectBurst(burst)) {
+                this.scheduleNext(Math.max(this.pingDelay.get(), this.retryPolicy.backoff()));
+                return;
+            }
+        }
+        long remainingOpen = this.retryPolicy.remainingOpen();
+        if (remainingOpen > 0) {
+            this.scheduleNext(remainingOpen);
+            return;
+        }
         try {
-            super.start();
-        } catch (IllegalThreadStateException ignored) {
-            this.fireEvent(Events.pingStartFailed(illegalState("unexpected state on start: " + getState())));
+            if (this.estimator == null) {
+                ClockOffsetEstimator.Estimate passive = this.passive ? ClockSync.takePassive(this.accuracy.get(), MIN_PASSIVE_SAMPLES) : null;
+                if (passive != null) {
+                    if (this.debug) {
+                        debug("Passive sync, series skipped");
+                    }
+                    this.scheduleNext(this.publish(passive));
+                    return;
+                }
+                this.startSeries();
+            }
+            if (this.rttOnly && this.roundTripsKnown()) {
+                this.probe = Math.max(this.probe, this.pingCount.get() - 1);
+            }
+            if (this.probe < this.pingCount.get() && !this.converged()) {
+                if (this.burst && this.probe > 0) {
+                    this.sendBurst(); // the burst schedules the next tick
+                } else if (this.sendProbe()) {
+                    this.scheduleNext(this.burst ? 0 : this.pingDelay.get());
+                } else {
+                    this.scheduleNext(Math.max(this.pingDelay.get(), this.retryPolicy.backoff()));
+                }
+            } else {
+                long seriesDelay = this.finishSeries();
+                this.estimator = null;
+                this.scheduleNext(seriesDelay);
+            }
+        } catch (Throwable cause) {
+            this.cancelBurst();
+            this.onPingFailed(cause);
+            this.estimator = null;
+            this.scheduleNext(Math.max(this.pingDelay.get(), this.retryPolicy.backoff()));
         }
     }
 
     @Override
-    public void interrupt() {
-        if (isInterrupted()) {
-            this.fireEvent(Events.pingStopFailed(illegalState("already interrupted")));
-        } else if (!isAlive()) {
-            this.fireEvent(Events.pingStopFailed(illegalState("httpAgent died")));
-        } else {
-            super.interrupt();
-        }
+    protected void onStarted() {
+        this.cancelBurst(); // left over from the previous run
+        this.fireEvent(Events.pingStarted());
+    }
+
+    @Override
+    protected void onStartFailed(IllegalStateException cause) {
+        this.fireEvent(Events.pingStartFailed(cause));
     }
 
     @Override
-    public void run() {
+    protected void onStopped(long uptime) {
+        this.fireEvent(Events.pingStopped(uptime));
+    }
 
-        long startupPoint = started();
+    @Override
+    protected void onStopFailed(IllegalStateException cause) {
+        this.fireEvent(Events.pingStopFailed(cause));
+    }
 
-        Request pingRequest = new Request.Builder().get().url(pingUrl.get() + PING_URL).build();
+    @Override
+    protected void onTickFailed(Throwable cause) {
+        this.fireEvent(Events.pingException(cause));
+    }
 
-        OkHttpClient httpClient = new OkHttpClient();
+    private void startSeries() {
+        this.pingRequest = new Request.Builder().get().url(pingUrl.get() + PING_URL).build();
+        this.rttRequest = this.pingRequest.newBuilder().head().build();
+        this.estimator = new ClockOffsetEstimator(this.pingCount.get());
+        this.probe = 0;
+        this.minHeadRoundTrip = Long.MAX_VALUE;
+        this.headSamples = 0;
+        this.timestampRetries = 0;
+    }
 
-        long pingDelay = 0x0;
-        int pingCount = 0x0;
-        long pingSeriesDelay = 0x0;
+    private boolean sendProbe() throws IOException, JSONException {
 
-        while (!interrupted()) {
-            try {
+        if (this.debug) {
+            debug("Sending ping #" + probe);
+        }
 
-                pingCount = this.pingCount.get();
-                pingDelay = this.pingDelay.get();
-                pingSeriesDelay = this.pingSeriesDelay.get();
-                String responseBody;
+        Response response = SharedHttpClient.get().newCall(CallTimings.tag(probeRequest(probe))).execute();
 
-                retry : {
+        String responseBody = isTimestampProbe(probe) ? response.body().string() : null;
 
-                    Average average = new Average(pingCount);
+        if (this.debug) {
+            debug("Ping #" + probe + " response : " + responseBody);
+        }
 
-                    for (int i = 0; i < pingCount; i += 1) {
+        boolean succeeded = response.isSuccessful();
 
-                        debug("Sending ping #" + i);
+        if (succeeded) {
+            if (this.debug) {
+                debug("Ping #" + probe + " timings : " + CallTimings.of(response));
+            }
+            if (this.accept(CallTimings.sentAtMillis(response), responseBody,
+                    CallTimings.receivedAtMillis(response), CallTimings.roundTripMillis(response))) {
+                this.probe += 1;
+            }
+        } else {
+            this.onPingFailed(response.code(), response.message());
+        }
+        try {
+            response.close();
+        } catch (Exception cause) {
+            this.onException(cause);
+        }
+        return succeeded;
+    }
 
-                        Response response = httpClient.newCall(pingRequest).execute();
+    /**
+     * Burst mode: after the first probe has warmed up the connection, the remaining probes of the series
+     * are enqueued {@link #burstStagger} millis apart without waiting for responses, so over HTTP/2 they
+     * share one multiplexed connection and the whole series takes about one round trip.
+     * Nothing blocks a scheduler thread: the enqueues are scheduled tasks, and the last completed probe,
+     * or the timeout, schedules the tick which collects the results. The estimator keeps the lowest round trip samples.
+     */
 
-                        responseBody = response.body().string();
+    private void sendBurst() {
+        int count = this.pingCount.get() - this.probe;
 
-                        debug("Ping #" + i + " response : " + responseBody);
+        if (this.debug) {
+            debug("Sending burst of " + count + " pings");
+        }
 
-                        if (response.isSuccessful()) {
-                            long delta = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
-                            average.add(delta);
-                            this.onSuccess();
-                            debug("Ping #" + i + " delta : " + delta);
-                        } else {
-                            i -= 1;
-                            this.onPingFailed(response.code(), response.message());
-                        }
-                        try {
-                            response.close();
-                        } catch (Exception cause) {
-                            this.onException(cause);
-                        }
-                        Thread.sleep(pingDelay);
+        long stagger = Math.max(0L, this.burstStagger.get());
+        Burst burst = new Burst(count);
+        burst.timeout = BackgroundScheduler.schedule(burst, (count - 1) * stagger + BURST_TIMEOUT_MILLIS);
+        this.pendingBurst = burst;
+        for (int i = 0; i < count; i += 1) {
+            final Call call = SharedHttpClient.get().newCall(CallTimings.tag(probeRequest(this.probe + i)));
+            final BurstProbe probe = new BurstProbe(burst);
+            burst.calls[i] = call;
+            burst.probes[i] = probe;
+            if (i == 0) {
+                call.enqueue(probe);
+            } else {
+                BackgroundScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        call.enqueue(probe);
                     }
+                }, i * stagger);
+            }
+        }
+    }
 
-                    int avg = average.value();
+    private void cancelBurst() {
+        Burst burst = this.pendingBurst;
+        if (burst != null) {
+            this.pendingBurst = null;
+            burst.timeout.cancel(false);
+            burst.cancel();
+        }
+    }
 
-                    int retryCount = 5;
+    /**
+     * @return false if any probe failed
+     */
 
-                    repeatRequest : {
+    private boolean collectBurst(Burst burst) {
+        boolean succeeded = true;
+        for (BurstProbe probe : burst.probes) {
+            boolean accepted = false; // failed slots are sent again on the next tick, as in sequential mode
+            synchronized (probe) {
+                try {
+                    if (probe.cause != null) {
+                        this.onPingFailed(probe.cause);
+                        succeeded = false;
+                    } else if (probe.code >= 200 && probe.code < 300) {
+                        accepted = this.accept(probe.sent, probe.body, probe.received, probe.roundTrip);
+                    } else {
+                        this.onPingFailed(probe.code, probe.message);
+                        succeeded = false;
+                    }
+                } catch (JSONException | IllegalArgumentException cause) {
+                    this.onPingFailed(cause);
+                    succeeded = false;
+                }
+            }
+            if (accepted) {
+                this.probe += 1;
+            }
+        }
+        return succeeded;
+    }
 
-                        Response response = httpClient.newCall(pingRequest).execute();
+    /**
+     * RTT-only mode: every probe but the last is a HEAD request which only measures the round trip,
+     * so the series costs no response body or parsing; the last probe reads the server timestamp.
+     * The timestamp is taken only if its round trip is within a margin of the lowest HEAD round trip,
+     * otherwise the probe is repeated, at most {@link #MAX_TIMESTAMP_RETRIES} times.
+     */
 
-                        long roundTrip = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
-                        responseBody = response.body().string();
+    private boolean isTimestampProbe(int probe) {
+        return !this.rttOnly || probe >= this.pingCount.get() - 1;
+    }
 
-                        debug("Control checkpoint response : " + responseBody);
-                        debug("Control checkpoint round trip time : " + roundTrip);
+    private Request probeRequest(int probe) {
+        return isTimestampProbe(probe) ? this.pingRequest : this.rttRequest;
+    }
 
-                        if ((roundTrip / avg) > 1.3) {
-                            try {
-                                response.close();
-                            } catch (Exception e) {
-                                this.onException(e);
-                            }
-                            if ((retryCount -= 1) <= 0) {
-                                debug("Control checkpoint round trip time is more than 30% dev. Retry #" + retryCount);
-                                break retry;
-                            } else {
-                                debug("All control checkpoints round trip time is more than 30% dev. Repeat ping series");
-                                break repeatRequest;
-                            }
-                        }
-                        try {
-                            JSONObject body = new JSONObject(responseBody);
+    /**
+     * @return false if the timestamp probe has to be repeated
+     */
+
+    private boolean accept(long sent, String responseBody, long received, long roundTrip) throws JSONException {
+        roundTrips.record(roundTrip);
+        this.onSuccess();
+        if (responseBody == null) {
+            this.minHeadRoundTrip = Math.min(this.minHeadRoundTrip, roundTrip);
+            this.headSamples += 1;
+            if (this.debug) {
+                debug("Ping #" + probe + " round trip : " + roundTrip);
+            }
+            return true;
+        }
+        if (this.rttOnly && this.headSamples > 0 && roundTrip > this.roundTripLimit()
+                && this.timestampRetries < MAX_TIMESTAMP_RETRIES) {
+            this.timestampRetries += 1;
+            if (this.debug) {
+                debug("Ping #" + probe + " round trip " + roundTrip + " over " + this.roundTripLimit() + ", retrying");
+            }
+            return false;
+        }
+        long serverTimestamp = DateTime.parse(new JSONObject(responseBody).getString("timestamp")).getMillis();
+        estimator.add(sent, serverTimestamp, 1L, received);
+        if (this.debug) {
+            debug("Ping #" + probe + " delta : " + (received - sent));
+        }
+        return true;
+    }
 
-                            long delta = System.currentTimeMillis() - DateTime.parse(body.getString("timestamp")).plusMillis(avg / 2).getMillis();
+    /**
+     * @return highest round trip of a timestamp probe worth taking in RTT-only mode
+     */
 
-                            fireEvent(Events.serverTimestamp(DateTime.parse(body.getString("timestamp")).plusMillis(avg / 2), delta));
-                            response.close();
-                        } catch (Exception e) {
-                            this.onException(e);
-                        }
-                    }
-                }
-                Thread.sleep(pingSeriesDelay);
-            } catch (InterruptedException ignored) {
-                this.interrupt();
-            } catch (Throwable cause) {
-                this.onPingFailed(cause);
-                try {
-                    Thread.sleep(pingDelay);
-                } catch (InterruptedException e) {
-                    this.interrupt();
+    private long roundTripLimit() {
+        return this.minHeadRoundTrip + Math.max(MIN_RTT_MARGIN_MILLIS, this.minHeadRoundTrip / 10);
+    }
+
+    /**
+     * RTT-only adaptive mode goes straight to the timestamp probe once the HEAD probes show
+     * that a probe within the round trip limit gives the offset within {@link #accuracy}.
+     */
+
+    private boolean roundTripsKnown() {
+        return this.adaptive && this.headSamples >= MIN_ADAPTIVE_SAMPLES
+                && (this.roundTripLimit() + 1) / 2 <= this.accuracy.get();
+    }
+
+    /**
+     * @return delay before the next series
+     */
+
+    private long finishSeries() {
+
+        ClockOffsetEstimator.Estimate estimate = estimator.estimate();
+
+        if (estimate == null) {
+            if (this.debug) {
+                debug("No samples in ping series");
+            }
+            return this.pingSeriesDelay.get();
+        }
+
+        return this.publish(estimate);
+    }
+
+    /**
+     * Feeds the estimate into the clock model and publishes the predicted server time.
+     *
+     * @return delay before the next series
+     */
+
+    private long publish(ClockOffsetEstimator.Estimate estimate) {
+
+        if (this.debug) {
+            debug("Offset : " + estimate.offset + " +- " + estimate.error + " min round trip : " + estimate.minRoundTrip + " samples : " + estimate.samples);
+            debug("Round trips : " + roundTrips);
+        }
+
+        long elapsed = SystemClock.elapsedRealtime();
+        long now = System.currentTimeMillis();
+
+        // the model runs on the monotonic clock: server - elapsedRealtime
+        double offset = estimate.offset + (now - elapsed);
+
+        boolean jumped = false;
+
+        if (!clockModel.isEmpty()) {
+            double jump = Math.abs(clockModel.offsetAt(elapsed) - offset);
+            if (jump > estimate.error + 3 * clockModel.uncertainty(elapsed) + this.accuracy.get()) {
+                if (this.debug) {
+                    debug("Offset jump : " + Math.round(jump));
                 }
+                clockModel.reset();
+                jumped = true;
             }
         }
-        this.finish(System.currentTimeMillis() - startupPoint);
+
+        clockModel.add(elapsed, offset, estimate.error);
+        ClockSync.publish(clockModel, elapsed);
+
+        long serverTimestamp = clockModel.serverTime(elapsed);
+
+        if (this.debug) {
+            debug("Skew : " + clockModel.skewPpm() + " ppm");
+        }
+
+        fireEvent(Events.serverTimestamp(new DateTime(serverTimestamp), now - serverTimestamp,
+                Math.round(clockModel.uncertainty(elapsed)), clockModel.skewPpm()));
+
+        return this.nextSeriesDelay(jumped, elapsed);
+    }
+
+    /**
+     * Adaptive mode stops the series as soon as the offset is known within {@link #accuracy}.
+     * In RTT-only mode the single timestamp probe ends the series, see {@link #roundTripsKnown()}.
+     */
+
+    private boolean converged() {
+        if (!this.adaptive || this.rttOnly || this.estimator.size() < MIN_ADAPTIVE_SAMPLES) {
+            return false;
+        }
+        ClockOffsetEstimator.Estimate estimate = this.estimator.estimate();
+        return estimate != null && estimate.error <= this.accuracy.get();
+    }
+
+    /**
+     * Adaptive mode drops the series delay to the minimum after a jump. Once the clock model has enough
+     * measurements it waits until the predicted offset may drift beyond {@link #accuracy},
+     * before that it doubles the delay after every consistent series.
+     */
+
+    private long nextSeriesDelay(boolean jumped, long elapsed) {
+        if (!this.adaptive) {
+            return this.pingSeriesDelay.get();
+        }
+        long min = this.minSeriesDelay.get();
+        long max = Math.max(min, this.maxSeriesDelay.get());
+        if (jumped) {
+            this.adaptiveSeriesDelay = min;
+        } else if (this.clockModel.size() >= MIN_MODEL_MEASUREMENTS) {
+            this.adaptiveSeriesDelay = this.clockModel.horizon(elapsed, this.accuracy.get());
+        } else if (this.adaptiveSeriesDelay == 0) {
+            this.adaptiveSeriesDelay = this.pingSeriesDelay.get();
+        } else if (this.clockModel.size() > 1) {
+            this.adaptiveSeriesDelay *= 2;
+        }
+        this.adaptiveSeriesDelay = Math.min(max, Math.max(min, this.adaptiveSeriesDelay));
+        return this.adaptiveSeriesDelay;
     }
 
     @Override
-    public void fireEvent(Bundle event) {
+    public void fireEvent(Event event) {
         this.eventPublisher.fireEvent(event);
     }
 
+    /**
+     * Debug lines go to {@link DebugLog}, and are also sent as events only if {@link #debugEvents} is set.
+     * Callers check {@link #debug} first, so nothing is built while debug is off.
+     */
+
     private void debug (String message) {
-        if (this.debug) {
+        DebugLog.log("ping", message);
+        if (this.debugEvents) {
             this.fireEvent(Events.debugPingService(message));
         }
     }
 
     private void onSuccess() {
         if (this.failed) {
-            this.fireEvent(Events.pingResume(System.currentTimeMillis() - lastFailed));
+            this.fireEvent(Events.pingResume(SystemClock.elapsedRealtime() - lastFailed, retryPolicy));
             this.failed = false;
         }
+        this.retryPolicy.onSuccess();
     }
 
     private void onPingFailed(Throwable cause) {
-        if (!failed) {
-            this.fireEvent(Events.pingFailed(cause));
-            this.failed = true;
+        if (this.onFailure()) {
+            this.fireEvent(Events.pingFailed(cause, retryPolicy));
         }
-        this.lastFailed = System.currentTimeMillis();
     }
 
     private void onPingFailed(int code, String message) {
-        if (!failed) {
-            this.fireEvent(Events.pingFailed(code, message));
-            this.failed = true;
+        if (this.onFailure()) {
+            this.fireEvent(Events.pingFailed(code, message, retryPolicy));
         }
-        this.lastFailed = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if failure must be reported: first failure in a row, or the circuit has just opened
+     */
+
+    private boolean onFailure() {
+        boolean wasOpen = this.retryPolicy.circuit() == RetryPolicy.Circuit.OPEN;
+        this.retryPolicy.onFailure();
+        boolean report = !failed || (!wasOpen && this.retryPolicy.circuit() == RetryPolicy.Circuit.OPEN);
+        this.failed = true;
+        this.lastFailed = SystemClock.elapsedRealtime();
+        return report;
     }
 
     private void onException(Exception cause) {
@@ -203,78 +509,102 @@ public class PingHttpAgent extends Thread implements EventPublisher, ServiceURL
             this.fireEvent(Events.pingException(cause));
             this.failed = true;
         }
-        this.lastFailed = System.currentTimeMillis();
+        this.lastFailed = SystemClock.elapsedRealtime();
     }
 
-    private long started() {
-        this.fireEvent(Events.pingStarted());
-        return System.currentTimeMillis();
-    }
+    /**
+     * Probes of one burst in flight, also the timeout task which cancels those not completed.
+     */
 
-    private void finish(long uptime) {
-        this.fireEvent(Events.pingStopped(uptime));
-    }
-
-    public class Average {
+    private final class Burst implements Runnable {
 
-        private final List<Long> series;
+        final BurstProbe[] probes;
 
-        public Average(int n) {
-            this.series = new ArrayList<>(n);
-        }
+        final Call[] calls;
 
-        public void add(long sample) {
-            this.series.add(sample);
-        }
+        volatile ScheduledFuture<?> timeout;
 
-        private double dev(double avg) {
+        private final AtomicInteger remaining;
 
-            double dev = 0.0D;
+        Burst(int count) {
+            this.probes = new BurstProbe[count];
+            this.calls = new Call[count];
+            this.remaining = new AtomicInteger(count);
+        }
 
-            for (long sample : series) {
-                dev += Math.pow(sample - avg, 2);
+        void completed() {
+            if (this.remaining.decrementAndGet() == 0 && PingHttpAgent.this.pendingBurst == this) {
+                PingHttpAgent.this.scheduleNext(0);
             }
+        }
 
-            return Math.sqrt(dev / series.size());
+        void cancel() {
+            for (Call call : this.calls) {
+                if (call != null) {
+                    call.cancel();
+                }
+            }
         }
 
-        private double avg() {
-            long total = 0L;
-            for (Long sample : series) {
-                total += sample;
+        @Override
+        public void run() {
+            if (this.remaining.get() > 0) {
+                if (PingHttpAgent.this.debug) {
+                    debug("Burst timed out");
+                }
+                this.cancel(); // cancelled calls complete with a failure
             }
-            return (total / series.size());
         }
+    }
 
-        public int value() {
+    /**
+     * Result of one burst probe, filled on the http dispatcher thread.
+     */
 
-            double avg = avg();
-            double sko = (dev(avg) / avg);
+    private static final class BurstProbe implements Callback {
 
-            debug("Avg : " + avg + " Sko : " + sko + " Delta series : " + series.toString());
+        private final Burst burst;
 
-            if (sko > 0.3) {
-                long total = 0L;
-                int count = 0;
-                for (long sample : series) {
-                    if ((sample / avg) <= 1.3) {
-                        total += sample;
-                        count += 1;
-                    } else {
-                        debug("Removing peak sample : " + sample);
-                    }
-                }
-                avg = (total / count);
+        long sent;
+        long received;
+        long roundTrip;
+        int code;
+        String message;
+        String body;
+        IOException cause;
 
-                debug("Recalculated avg : " + avg);
+        BurstProbe(Burst burst) {
+            this.burst = burst;
+        }
 
+        @Override
+        public void onFailure(Call call, IOException cause) {
+            synchronized (this) {
+                this.cause = cause;
             }
-
-            return (int) avg;
+            this.burst.completed();
         }
-    }
 
-    protected static IllegalStateException illegalState(String message) {
-        return new IllegalStateException(message);
+        @Override
+        public void onResponse(Call call, Response response) {
+            try {
+                String body = "HEAD".equals(call.request().method()) ? null : response.body().string();
+                synchronized (this) {
+                    this.sent = CallTimings.sentAtMillis(response);
+                    this.received = CallTimings.receivedAtMillis(response);
+                    this.roundTrip = CallTimings.roundTripMillis(response);
+                    this.code = response.code();
+                    this.message = response.message();
+                    this.body = body;
+                }
+            } catch (IOException cause) {
+                synchronized (this) {
+                    this.cause = cause;
+                }
+            } finally {
+                response.close();
+                this.burst.completed();
+            }
+        }
     }
 }
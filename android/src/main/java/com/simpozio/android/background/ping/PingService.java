@@ -8,19 +8,27 @@ import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.IBinder;
 
+import com.simpozio.android.background.event.Event;
+import com.simpozio.android.background.event.EventBus;
+import com.simpozio.android.background.event.EventJournal;
 import com.simpozio.android.background.event.EventPublisher;
+import com.simpozio.android.background.event.ThrottlingPublisher;
 
 import static com.simpozio.android.background.SimpozioBackgroundWorker.FEEDBACK_EVENT_BUNDLE;
 import static com.simpozio.android.background.SimpozioBackgroundWorker.FEEDBACK_INTENT_ACTION;
 import static com.simpozio.android.background.SimpozioBackgroundWorker.PING_INTENT_ACTION;
+import static com.simpozio.android.background.SimpozioBackgroundWorker.RETRY_EXTRA;
 
 public class PingService extends Service implements EventPublisher {
 
-    private final PingHttpAgent pingAgent = new PingHttpAgent(this);
+    private final PingHttpAgent pingAgent = new PingHttpAgent(new ThrottlingPublisher(this));
+
+    private volatile EventJournal journal;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        this.journal = EventJournal.get(getFilesDir());
         this.registerReceiver(createReceiver(), getPingIntentFilter());
     }
 
@@ -40,16 +48,33 @@ public class PingService extends Service implements EventPublisher {
     }
 
     @Override
-    public void fireEvent(Bundle event) {
-        this.sendBroadcast(asFeedback(event));
+    public void fireEvent(Event event) {
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(event);
+        }
+        if (!EventBus.get().publish(event)) {
+            this.sendBroadcast(asFeedback(event.toBundle()));
+        }
+        event.recycle();
     }
 
    private void updateAgent(Intent intent) {
        this.pingAgent.debug = intent.getBooleanExtra("debug", false);
+       this.pingAgent.debugEvents = intent.getBooleanExtra("debugEvents", false);
        this.pingAgent.pingCount.set(intent.getIntExtra("count", 10));
        this.pingAgent.pingDelay.set(intent.getIntExtra("delay", 5000)); // 5 sec
        this.pingAgent.pingSeriesDelay.set(intent.getIntExtra("seriesDelay", 300000)); // 5 min
        this.pingAgent.pingUrl.set(intent.getStringExtra("baseUrl"));
+       this.pingAgent.retryPolicy.configure(intent.getBundleExtra(RETRY_EXTRA));
+       this.pingAgent.adaptive = intent.getBooleanExtra("adaptive", false);
+       this.pingAgent.passive = intent.getBooleanExtra("passive", false);
+       this.pingAgent.burst = intent.getBooleanExtra("burst", false);
+       this.pingAgent.rttOnly = intent.getBooleanExtra("rttOnly", false);
+       this.pingAgent.burstStagger.set(intent.getIntExtra("burstStagger", 10)); // 10 ms
+       this.pingAgent.accuracy.set(intent.getIntExtra("accuracy", 25)); // 25 ms
+       this.pingAgent.minSeriesDelay.set(intent.getIntExtra("minSeriesDelay", 60000)); // 1 min
+       this.pingAgent.maxSeriesDelay.set(intent.getIntExtra("maxSeriesDelay", 3600000)); // 1 hour
    }
 
     private BroadcastReceiver createReceiver() {
@@ -0,0 +1,66 @@
+package com.simpozio.android.background.scheduler;
+
+import android.os.Process;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Single process-wide executor which runs every periodic background job (heartbeat, ping, trace)
+ * as timed tasks instead of parking a dedicated thread per agent, and a timer thread for short
+ * non-blocking tasks which must not wait behind a blocking tick.
+ */
+
+public final class BackgroundScheduler {
+
+    private static final int POOL_SIZE = 2;
+
+    private static final ScheduledExecutorService EXECUTOR = new ScheduledThreadPoolExecutor(POOL_SIZE, createThreadFactory("simpozio-scheduler-"));
+
+    private static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, createThreadFactory("simpozio-timer-"));
+
+    private BackgroundScheduler() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static ScheduledExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return EXECUTOR.schedule(task, delayMillis, MILLISECONDS);
+    }
+
+    /**
+     * Schedules a short task on the timer thread, the task must never block.
+     */
+
+    public static ScheduledFuture<?> scheduleTimer(Runnable task, long delayMillis) {
+        return TIMER.schedule(task, delayMillis, MILLISECONDS);
+    }
+
+    private static ThreadFactory createThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
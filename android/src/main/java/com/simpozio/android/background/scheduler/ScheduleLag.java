@@ -0,0 +1,47 @@
+package com.simpozio.android.background.scheduler;
+
+/**
+ * Lateness of agent ticks against their planned deadlines, measured on the monotonic clock.
+ */
+
+public final class ScheduleLag {
+
+    private long ticks = 0;
+    private long skipped = 0;
+    private long lastLagMillis = 0;
+    private long maxLagMillis = 0;
+    private long totalLagMillis = 0;
+
+    synchronized void record(long lagMillis) {
+        this.ticks += 1;
+        this.lastLagMillis = lagMillis;
+        this.totalLagMillis += lagMillis;
+        if (lagMillis > maxLagMillis) {
+            this.maxLagMillis = lagMillis;
+        }
+    }
+
+    synchronized void skip(long count) {
+        this.skipped += count;
+    }
+
+    public synchronized long ticks() {
+        return ticks;
+    }
+
+    public synchronized long skipped() {
+        return skipped;
+    }
+
+    public synchronized long last() {
+        return lastLagMillis;
+    }
+
+    public synchronized long max() {
+        return maxLagMillis;
+    }
+
+    public synchronized long average() {
+        return ticks == 0 ? 0 : totalLagMillis / ticks;
+    }
+}
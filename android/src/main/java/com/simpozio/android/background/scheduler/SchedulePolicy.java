@@ -0,0 +1,29 @@
+package com.simpozio.android.background.scheduler;
+
+public enum SchedulePolicy {
+
+    /**
+     * next tick starts {@code period - 2 * roundTrip} after the previous one finished
+     */
+    FIXED_DELAY,
+
+    /**
+     * ticks stay on a fixed grid, late ticks run back to back until the grid is reached again
+     */
+    FIXED_RATE_CATCH_UP,
+
+    /**
+     * ticks stay on a fixed grid, grid points already missed are skipped
+     */
+    FIXED_RATE_SKIP;
+
+    public static SchedulePolicy parse(String raw) {
+        if ("catchUp".equals(raw)) {
+            return FIXED_RATE_CATCH_UP;
+        } else if ("skip".equals(raw)) {
+            return FIXED_RATE_SKIP;
+        } else {
+            return FIXED_DELAY;
+        }
+    }
+}
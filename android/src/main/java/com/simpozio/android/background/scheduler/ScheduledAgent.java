@@ -0,0 +1,165 @@
+package com.simpozio.android.background.scheduler;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Base of every periodic agent. One {@link #tick()} call is one tick of the agent,
+ * the tick decides when the next one happens via {@link #scheduleNext(long)} or {@link #scheduleAtRate(long, SchedulePolicy)}.
+ * Deadlines are kept on {@link System#nanoTime()}, the same monotonic clock the executor uses.
+ */
+
+public abstract class ScheduledAgent implements Runnable {
+
+    private static final long RECOVERY_DELAY_MILLIS = 5000L;
+
+    private final Object lock = new Object();
+
+    private final ScheduleLag scheduleLag = new ScheduleLag();
+
+    private ScheduledFuture<?> task;
+
+    private boolean active = false;
+
+    private long startupPoint = 0;
+
+    private long deadlineNanos = 0;
+
+    private boolean scheduled = false;
+
+    protected abstract void tick();
+
+    protected abstract void onStarted();
+
+    protected abstract void onStartFailed(IllegalStateException cause);
+
+    protected abstract void onStopped(long uptime);
+
+    protected abstract void onStopFailed(IllegalStateException cause);
+
+    /**
+     * Called when {@link #tick()} has thrown, the agent is rescheduled anyway.
+     */
+
+    protected abstract void onTickFailed(Throwable cause);
+
+    /**
+     * Runs one tick; an exception escaping the tick must not cancel the chain silently,
+     * so it is reported and, unless the tick has already scheduled the next one, the agent retries later.
+     */
+
+    @Override
+    public final void run() {
+        this.scheduleLag.record(NANOSECONDS.toMillis(Math.max(0L, System.nanoTime() - deadlineNanos)));
+        synchronized (lock) {
+            this.scheduled = false;
+        }
+        try {
+            this.tick();
+        } catch (Throwable cause) {
+            boolean scheduled;
+            synchronized (lock) {
+                scheduled = this.scheduled;
+            }
+            if (!scheduled) {
+                this.scheduleNext(RECOVERY_DELAY_MILLIS);
+            }
+            try {
+                this.onTickFailed(cause);
+            } catch (Throwable ignored) {
+                // reporting must not break the chain either
+            }
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (active) {
+                this.onStartFailed(illegalState("unexpected state on start: already started"));
+                return;
+            }
+            this.active = true;
+            this.startupPoint = SystemClock.elapsedRealtime();
+            this.onStarted();
+            this.deadlineNanos = System.nanoTime();
+            this.task = BackgroundScheduler.schedule(this, 0L);
+        }
+    }
+
+    public void interrupt() {
+        synchronized (lock) {
+            if (!active) {
+                this.onStopFailed(illegalState("already interrupted"));
+                return;
+            }
+            this.active = false;
+            this.task.cancel(false);
+            this.task = null;
+            this.onStopped(SystemClock.elapsedRealtime() - startupPoint);
+        }
+    }
+
+    public boolean isActive() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    public ScheduleLag scheduleLag() {
+        return scheduleLag;
+    }
+
+    /**
+     * Records a tick which ran but had to skip its work.
+     */
+
+    protected void skipped() {
+        this.scheduleLag.skip(1);
+    }
+
+    protected void scheduleNext(long delayMillis) {
+        long delayNanos = MILLISECONDS.toNanos(Math.max(0L, delayMillis));
+        synchronized (lock) {
+            this.deadlineNanos = System.nanoTime() + delayNanos;
+            this.schedule(delayNanos);
+        }
+    }
+
+    /**
+     * Schedules the next tick one period after the deadline of the current one, independent of how long the tick took.
+     */
+
+    protected void scheduleAtRate(long periodMillis, SchedulePolicy policy) {
+        if (policy == SchedulePolicy.FIXED_DELAY) {
+            this.scheduleNext(periodMillis);
+            return;
+        }
+        long periodNanos = MILLISECONDS.toNanos(Math.max(1L, periodMillis));
+        synchronized (lock) {
+            long now = System.nanoTime();
+            long deadline = this.deadlineNanos + periodNanos;
+            if (deadline < now && policy == SchedulePolicy.FIXED_RATE_SKIP) {
+                long missed = (now - deadline) / periodNanos + 1;
+                this.scheduleLag.skip(missed);
+                deadline += missed * periodNanos;
+            }
+            this.deadlineNanos = deadline;
+            this.schedule(Math.max(0L, deadline - now));
+        }
+    }
+
+    private void schedule(long delayNanos) {
+        if (active) {
+            this.task = BackgroundScheduler.executor().schedule(this, delayNanos, NANOSECONDS);
+            this.scheduled = true;
+        }
+    }
+
+    protected static IllegalStateException illegalState(String message) {
+        return new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,117 @@
+package com.simpozio.android.background.stats;
+
+import java.util.Arrays;
+
+/**
+ * Latency recorder on primitive arrays: a ring buffer of the last {@code capacity} samples for
+ * percentiles, plus Welford running mean/variance and min/max over every sample since {@link #reset()}.
+ * Recording never allocates; percentiles sort a preallocated scratch copy of the window.
+ */
+
+public final class LatencyStats {
+
+    private final long[] window;
+    private final long[] scratch;
+
+    private int next = 0;
+    private int size = 0;
+
+    private long count = 0;
+    private double mean = 0.0D;
+    private double m2 = 0.0D;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    private boolean sorted = false;
+
+    public LatencyStats(int capacity) {
+        this.window = new long[Math.max(1, capacity)];
+        this.scratch = new long[window.length];
+    }
+
+    public synchronized void record(long sample) {
+        this.window[next] = sample;
+        this.next = (next + 1) % window.length;
+        if (size < window.length) {
+            this.size += 1;
+        }
+        this.count += 1;
+        double delta = sample - mean;
+        this.mean += delta / count;
+        this.m2 += delta * (sample - mean);
+        if (sample < min) {
+            this.min = sample;
+        }
+        if (sample > max) {
+            this.max = sample;
+        }
+        this.sorted = false;
+    }
+
+    public synchronized void reset() {
+        this.next = 0;
+        this.size = 0;
+        this.count = 0;
+        this.mean = 0.0D;
+        this.m2 = 0.0D;
+        this.min = Long.MAX_VALUE;
+        this.max = Long.MIN_VALUE;
+        this.sorted = false;
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    public synchronized double mean() {
+        return mean;
+    }
+
+    public synchronized double deviation() {
+        return count < 2 ? 0.0D : Math.sqrt(m2 / count);
+    }
+
+    public synchronized long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long max() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * @param quantile in range (0, 1]
+     * @return nearest-rank percentile over the last {@code capacity} samples, 0 if empty
+     */
+
+    public synchronized long percentile(double quantile) {
+        if (size == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            System.arraycopy(window, 0, scratch, 0, size);
+            Arrays.sort(scratch, 0, size);
+            this.sorted = true;
+        }
+        int rank = (int) Math.ceil(quantile * size);
+        return scratch[Math.min(size, Math.max(1, rank)) - 1];
+    }
+
+    public long p50() {
+        return percentile(0.50D);
+    }
+
+    public long p90() {
+        return percentile(0.90D);
+    }
+
+    public long p99() {
+        return percentile(0.99D);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n : " + count + " mean : " + Math.round(mean) + " dev : " + Math.round(deviation()) +
+                " min : " + min() + " p50 : " + p50() + " p90 : " + p90() + " p99 : " + p99() + " max : " + max();
+    }
+}
@@ -2,9 +2,9 @@ package com.simpozio.android.background.trace;
 
 import android.app.Service;
 import android.content.Intent;
-import android.os.Bundle;
 import android.os.IBinder;
 
+import com.simpozio.android.background.event.Event;
 import com.simpozio.android.background.event.EventPublisher;
 import com.simpozio.android.background.http.AsyncHttpAgent;
 
@@ -18,7 +18,7 @@ public final class TraceService extends Service implements EventPublisher {
     }
 
     @Override
-    public void fireEvent(Bundle event) {
-
+    public void fireEvent(Event event) {
+        event.recycle();
     }
 }
@@ -13,14 +13,34 @@ let EVENT_START_FAILED = "startFailed";
 let EVENT_STOP_FAILED = "stopFailed";
 let EVENT_STARTED = "started";
 let EVENT_STOPPED = "stopped";
+let EVENT_BATCH = "simpozioEvents";
+
+let isReplayed = false;
+let handledSequence = 0;
+
+// native side coalesces events into batches, re-emit them one by one for listeners of each type,
+// then acknowledge them so the native journal does not replay them on the next start;
+// an acknowledgement covers every earlier event too, so nothing is acknowledged before the replay
+DeviceEventEmitter.addListener(EVENT_BATCH, (events) => {
+    let sequence = handledSequence;
+    _.forEach(events, (event) => {
+        DeviceEventEmitter.emit(event.type, event);
+        sequence = Math.max(sequence, event.sequence || 0);
+    });
+    handledSequence = sequence;
+    if (isReplayed && sequence > 0) {
+        SimpozioBackgroundWorker.acknowledgeEvents(sequence);
+    }
+});
 
+// events replayed from the native journal happened before this call, they must not settle it
 let eventPromiseHelper = (eventSuccess, eventFailed, service) => {
     return new Promise((resolve, reject) => {
         let waitFor;
         let waitForFailed;
 
         waitFor = DeviceEventEmitter.addListener(eventSuccess, (event) => {
-            if (event && event.service === service) {
+            if (event && !event.replayed && event.service === service) {
                 waitForFailed.remove();
                 waitFor.remove();
                 return resolve();
@@ -29,7 +49,7 @@ let eventPromiseHelper = (eventSuccess, eventFailed, service) => {
         });
 
         waitForFailed = DeviceEventEmitter.addListener(eventFailed, (error) => {
-            if (error && error.service === service) {
+            if (error && !error.replayed && error.service === service) {
                 waitForFailed.remove();
                 waitFor.remove();
                 return reject(error);
@@ -74,7 +94,13 @@ let updateHeartbeatMetadata = (metadata) => {
     currentHeartbeatMetadata = _.assign({}, currentHeartbeatMetadata, {
         baseUrl: metadata.baseUrl,
         headers: _.assign({}, currentHeartbeatMetadata.headers, metadata.headers),
-        requestBody: _.assign({}, currentHeartbeatMetadata.body, metadata.body)
+        requestBody: _.assign({}, currentHeartbeatMetadata.body, metadata.body),
+        schedule: metadata.schedule || currentHeartbeatMetadata.schedule,
+        retry: metadata.retry || currentHeartbeatMetadata.retry,
+        dispatch: metadata.dispatch || currentHeartbeatMetadata.dispatch,
+        maxInFlight: metadata.maxInFlight || currentHeartbeatMetadata.maxInFlight,
+        gzip: _.isBoolean(metadata.gzip) ? metadata.gzip : currentHeartbeatMetadata.gzip,
+        timestampHeader: metadata.timestampHeader || currentHeartbeatMetadata.timestampHeader
     });
 
     return currentHeartbeatMetadata;
@@ -145,6 +171,34 @@ let updatePing = (metadata) => {
     }
 };
 
+let configureHttp = (config) => {
+    SimpozioBackgroundWorker.configureHttp(config || {});
+};
+
+let configureEvents = (config) => {
+    SimpozioBackgroundWorker.configureEvents(config || {});
+};
+
+let acknowledgeEvents = (sequence) => {
+    SimpozioBackgroundWorker.acknowledgeEvents(sequence);
+};
+
+// call once listeners are attached: emits events the app has not handled before this start,
+// marked replayed, and starts acknowledging handled events
+let replayEvents = () => {
+    if (isReplayed) {
+        return;
+    }
+    isReplayed = true;
+    SimpozioBackgroundWorker.replayEvents();
+};
+
+let dumpDebugLog = () => SimpozioBackgroundWorker.dumpDebugLog();
+
+let getServerTime = () => SimpozioBackgroundWorker.getServerTime();
+
+let getClockOffset = () => SimpozioBackgroundWorker.getClockOffset();
+
 let stopHeartbeat = () => {
     if (!isHeartbeatStarted) {
         return Promise.resolve();
@@ -180,5 +234,12 @@ module.exports = {
     updatePing,
     stopPing,
     removeListener,
-    removeAllListeners
+    removeAllListeners,
+    configureHttp,
+    configureEvents,
+    dumpDebugLog,
+    acknowledgeEvents,
+    replayEvents,
+    getServerTime,
+    getClockOffset
 };